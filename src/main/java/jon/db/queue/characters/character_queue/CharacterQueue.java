@@ -41,9 +41,13 @@ public class CharacterQueue implements QueueEntity<Long> {
     private LocalDateTime arrivedAt;
     private Integer nonTimeoutRetries;
     private LocalDateTime processedAt;
+    private LocalDateTime lockedUntil;
+    private String lockedBy;
+    private LocalDateTime nextAttemptAt; //Arrival until the first failure, then the backoff schedule
 
     public void markAsFailedToProcess(Emitter emitAction) {
         this.nonTimeoutRetries++;
+        releaseLease();
         emitAction.emitUpdate(this);
     }
 
@@ -59,6 +63,7 @@ public class CharacterQueue implements QueueEntity<Long> {
 
     public void markAsProcessed(Emitter emitAction) {
         this.processedAt = LocalDateTime.now();
+        releaseLease();
         emitAction.emitUpdate(this);
     }
 
@@ -66,6 +71,11 @@ public class CharacterQueue implements QueueEntity<Long> {
         emitAction.emitDeletion(this);
     }
 
+    private void releaseLease() {
+        this.lockedUntil = null;
+        this.lockedBy = null;
+    }
+
     public Map<String, Object> transformFieldsToMap(){
         return Map.of(
                 "internalId", getInternalId() != null ? getInternalId() : "",
@@ -84,7 +94,10 @@ public class CharacterQueue implements QueueEntity<Long> {
             var arrivedAt = LocalDateTime.now();
             var nonTimeoutRetries = 0;
             LocalDateTime processedAt = null;
-            return new CharacterQueue(id, messageId, data, arrivedAt, nonTimeoutRetries, processedAt);
+            LocalDateTime lockedUntil = null;
+            String lockedBy = null;
+            var nextAttemptAt = arrivedAt;
+            return new CharacterQueue(id, messageId, data, arrivedAt, nonTimeoutRetries, processedAt, lockedUntil, lockedBy, nextAttemptAt);
         }
     }
 }
@@ -2,6 +2,7 @@ package jon.db.queue.characters.character_queue.application;
 
 import jon.db.queue.characters.Character;
 import jon.db.queue.characters.character_queue.infra.CharacterQueueProducer;
+import jon.db.queue.characters.character_queue.infra.CharacterQueueProducer.CharacterMessage;
 import lombok.RequiredArgsConstructor;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.PostMapping;
@@ -9,6 +10,7 @@ import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
 
+import java.util.List;
 import java.util.UUID;
 
 @RestController
@@ -24,5 +26,18 @@ class EnqueueCharacter {
         return ResponseEntity.ok().build();
     }
 
+    @PostMapping("/batch")
+    public ResponseEntity<List<EnqueueResult>> enqueueBatch(@RequestBody List<EnqueueRequest> requests) {
+        var messages = requests.stream().map(r -> new CharacterMessage(r.messageId(), r.character())).toList();
+
+        var results = producer.publishAll(messages).stream()
+                .map(r -> new EnqueueResult(r.messageId(), r.internalId(), r.duplicated()))
+                .toList();
+
+        return ResponseEntity.ok(results);
+    }
+
     record EnqueueRequest(UUID messageId, Character character) { }
+
+    record EnqueueResult(UUID messageId, Long internalId, boolean duplicated) { }
 }
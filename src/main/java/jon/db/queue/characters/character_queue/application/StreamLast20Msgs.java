@@ -7,11 +7,12 @@ import lombok.RequiredArgsConstructor;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
-import java.io.IOException;
 import java.util.List;
 import java.util.Map;
 
@@ -22,26 +23,27 @@ class StreamLast20Msgs {
     private final HttpSseEmitter httpSseEmitter;
     private final CharacterQueueSpringJpaRepo jpaRepo;
 
+    //Reconnect storms (i.e. after a deploy) would turn into one query per browser
+    private static final long SNAPSHOT_TTL_MILLIS = 2000;
+
+    private final Object snapshotLock = new Object();
+    private volatile Snapshot snapshot;
+
     /**
-     * SSE Endpoint to retrieve messages in real time
+     * SSE Endpoint to retrieve messages in real time.
+     * Reconnecting browsers send Last-Event-ID and get the events they missed from memory.
+     * In STATS mode there are no per-message events, only one aggregated frame per second.
      */
     @GetMapping(path = "/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
-    public SseEmitter streamMessages() {
-        SseEmitter emitter = httpSseEmitter.createEmitter();
-
-        try {
-            var messages = findLast20Msgs();
-
-            for (CharacterQueue message : messages) {
-                var data = message.transformFieldsToMap();
-                var sseEvent = SseEmitter.event().id(String.valueOf(message.getInternalId())).name("message").data(data);
-                emitter.send(sseEvent);
-            }
-        } catch (IOException e) {
-            emitter.completeWithError(e);
+    public SseEmitter streamMessages(@RequestHeader(name = "Last-Event-ID", required = false) String lastEventId,
+                                     @RequestParam(name = "lastEventId", required = false) String lastEventIdParam,
+                                     @RequestParam(name = "mode", defaultValue = "EVENTS") StreamMode mode) {
+        if (mode == StreamMode.STATS) {
+            return httpSseEmitter.createStatsEmitter();
         }
 
-        return emitter;
+        //The param is for clients that reconnect with a new EventSource, which doesn't send the header
+        return httpSseEmitter.createEmitter(lastEventId != null ? lastEventId : lastEventIdParam, this::last20MsgsSnapshot);
     }
 
     @GetMapping("/stream/active-connections")
@@ -52,5 +54,32 @@ class StreamLast20Msgs {
     public List<CharacterQueue> findLast20Msgs() {
         return jpaRepo.findTop20ByOrderByInternalIdDesc();
     }
+
+    //Single flight: the browsers reconnecting together wait for the one that queries and share its snapshot
+    private List<HttpSseEmitter.SnapshotEvent> last20MsgsSnapshot() {
+        var current = snapshot;
+        if (isFresh(current)) {
+            return current.events();
+        }
+        synchronized (snapshotLock) {
+            current = snapshot;
+            if (!isFresh(current)) {
+                var events = findLast20Msgs().stream()
+                        .map(message -> new HttpSseEmitter.SnapshotEvent("message", message.transformFieldsToMap()))
+                        .toList();
+                current = new Snapshot(events, System.currentTimeMillis());
+                snapshot = current;
+            }
+            return current.events();
+        }
+    }
+
+    private boolean isFresh(Snapshot current) {
+        return current != null && System.currentTimeMillis() - current.takenAt() <= SNAPSHOT_TTL_MILLIS;
+    }
+
+    enum StreamMode { EVENTS, STATS }
+
+    private record Snapshot(List<HttpSseEmitter.SnapshotEvent> events, long takenAt) { }
 }
 
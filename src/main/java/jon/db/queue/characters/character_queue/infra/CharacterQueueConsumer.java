@@ -1,35 +1,61 @@
 package jon.db.queue.characters.character_queue.infra;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.zaxxer.hikari.HikariDataSource;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import jon.db.queue.characters.Character;
 import jon.db.queue.characters.character_queue.CharacterQueue;
+import jon.db.queue.shared.queue.abstract_queue.QueueKey;
 import jon.db.queue.shared.queue.abstract_queue.QueueRepo;
-import jon.db.queue.shared.queue.dead_letter_queue.DeadLetterQueueHandler;
-import jon.db.queue.shared.queue.dead_letter_queue.DeadLetterQueue;
+import jon.db.queue.shared.queue.ack.PendingAcks;
+import jon.db.queue.shared.queue.ack.WindowedAcks;
+import jon.db.queue.shared.queue.liveness.ConsumerLiveness;
+import jon.db.queue.shared.queue.metrics.QueueMetrics;
+import jon.db.queue.shared.queue.notification.QueueNotificationListener;
+import jon.db.queue.shared.queue.partitioning.QueuePartitionManager;
+import jon.db.queue.shared.queue.retention.QueueRetention;
 import jon.db.queue.shared.Emitter;
+import jon.db.queue.shared.queue.AdaptiveConcurrency;
+import jon.db.queue.shared.queue.ClaimMode;
+import jon.db.queue.shared.queue.ClaimToken;
+import jon.db.queue.shared.queue.InFlightLimiter;
+import jon.db.queue.shared.queue.QueueDrainer;
+import jon.db.queue.shared.queue.RetryBackoff;
+import jon.db.queue.shared.queue.SavepointRunner;
+import jon.db.queue.shared.queue.WorkerExecution;
 import jon.db.queue.characters.CharacterProcessor;
 import lombok.RequiredArgsConstructor;
 import lombok.SneakyThrows;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
+import javax.sql.DataSource;
+import java.time.Duration;
+import java.time.LocalDateTime;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
 
 @Component
 @Slf4j
 @RequiredArgsConstructor
 class CharacterQueueScheduler {
     private final CharacterQueueWorker worker;
+    private final QueuePartitionManager partitionManager;
 
     @Scheduled(fixedDelay = 15000)
     public void sendEmailIfNoAccessToQueue() {
@@ -40,6 +66,9 @@ class CharacterQueueScheduler {
 
     @Scheduled(fixedDelay = 99999)
     public void deleteOldMessages() {
+        if (partitionManager.isPartitioned(CharacterQueue.TABLE_NAME)) {
+            return; //Old partitions are dropped as a whole
+        }
         worker.deleteOldMessages();
     }
 }
@@ -49,59 +78,245 @@ class CharacterQueueScheduler {
 @RequiredArgsConstructor
 class CharacterQueuePoller {
     private final CharacterQueueWorker worker;
+    private final QueueRepo<CharacterQueue, Long> repo;
+    private final QueueNotificationListener notificationListener;
+    private final QueueMetrics metrics;
+    private final ConsumerLiveness liveness;
+    private final CharacterQueueStats stats;
+    private final DataSource dataSource;
+    private final MeterRegistry meterRegistry;
+
+    private ExecutorService executor; // Workers for concurrency
+    private QueueDrainer drainer;
+    private AdaptiveConcurrency concurrency;
+    private InFlightLimiter limiter = InFlightLimiter.UNBOUNDED;
+
+    @Value("${queue.character.claim-mode:LOCK}")
+    private ClaimMode claimMode;
+
+    @Value("${queue.character.execution:PLATFORM}")
+    private WorkerExecution execution;
+
+    @Value("${queue.character.virtual.max-in-flight:200}")
+    private int maxInFlight;
+
+    @Value("${queue.character.virtual.max-connections:0}") //0 takes the Hikari pool minus a few for claims and sweeps
+    private int maxConnections;
+
+    @Value("${queue.character.adaptive.min-workers:1}")
+    private int minWorkers;
+
+    @Value("${queue.character.adaptive.max-workers:3}")
+    private int maxWorkers;
 
-    private static final int NUMBER_OF_THREADS = 3;
-    private final ExecutorService executor = Executors.newFixedThreadPool(NUMBER_OF_THREADS); // Workers for concurrency
+    @Value("${queue.character.adaptive.min-batch-size:1}")
+    private int minBatchSize;
 
-    //Increase the delay based on your needs, i.e., for backpressure
-    @Scheduled(fixedDelay = 10000)
+    @Value("${queue.character.adaptive.max-batch-size:3}")
+    private int maxBatchSize;
+
+    @Value("${queue.character.adaptive.max-error-rate:0.5}")
+    private double maxErrorRate;
+
+    @Value("${queue.character.shutdown-timeout:30s}")
+    private Duration shutdownTimeout;
+
+    @PostConstruct
+    void startWorkers() {
+        var limits = new AdaptiveConcurrency.Limits(minWorkers, maxWorkers, minBatchSize, maxBatchSize, maxErrorRate);
+        concurrency = new AdaptiveConcurrency(CharacterQueue.TABLE_NAME, limits, dataSource, meterRegistry);
+
+        if (execution == WorkerExecution.VIRTUAL) {
+            if (claimMode != ClaimMode.LEASE) {
+                throw new IllegalStateException("Virtual thread execution needs the LEASE claim mode, locks can't leave the claiming thread");
+            }
+            limiter = new InFlightLimiter(maxInFlight, maxConnections > 0 ? maxConnections : defaultMaxConnections());
+            executor = Executors.newVirtualThreadPerTaskExecutor();
+        } else {
+            executor = Executors.newFixedThreadPool(maxWorkers);
+        }
+        drainer = new QueueDrainer(CharacterQueue.TABLE_NAME, executor, concurrency::workers, this::processNextBatch);
+
+        notificationListener.subscribe(CharacterQueue.TABLE_NAME, this::pollQueue);
+        metrics.watch(CharacterQueue.TABLE_NAME, repo);
+        liveness.register(CharacterQueue.TABLE_NAME); //Lets the poison sweep tell an outage apart from messages really stuck
+    }
+
+    //Before the processor closes its acks, the batches in progress still need them
+    @PreDestroy
+    void stopWorkers() {
+        liveness.unregister(CharacterQueue.TABLE_NAME);
+        drainer.stop();
+        drainer.awaitTermination(shutdownTimeout);
+    }
+
+    private int defaultMaxConnections() {
+        var poolSize = dataSource instanceof HikariDataSource hikari ? hikari.getMaximumPoolSize() : 10;
+        return Math.max(1, poolSize - 2);
+    }
+
+    //Backpressure, batch size and active workers follow the backlog, the latency, the errors and the DB pool
+    @Scheduled(fixedDelayString = "${queue.character.adaptive.interval:5000}")
+    public void adjustConcurrency() {
+        concurrency.adjust();
+    }
+
+    //Fallback for missed notifications
+    @Scheduled(fixedDelayString = "${queue.character.poll-delay:10000}")
     public void pollQueue() {
         log.debug("Polling message queue...");
+        drainer.wakeUp();
+    }
 
-        for (int i = 0; i < NUMBER_OF_THREADS; i++) {
-            final String workerName = "Worker-" + (i + 1);
-            executor.submit(() -> worker.processMessages(workerName));
+    //Dispatched here, calling the @Transactional one from inside the worker would skip the proxy
+    private int processNextBatch(String workerName) {
+        var batchSize = concurrency.batchSize();
+        var start = System.nanoTime();
+
+        if (execution == WorkerExecution.VIRTUAL) {
+            var dispatched = worker.dispatchClaimedMessages(workerName, batchSize, limiter, executor, concurrency::recordMessage);
+            //Against the permits really asked for, a batch cut short by the limiter is still a full one
+            concurrency.record(dispatched.fetched(), dispatched.requested(), 0, Duration.ZERO);
+            stats.workerActivity(workerName, dispatched.fetched());
+            return dispatched.fetched();
         }
+
+        var result = switch (claimMode) {
+            case LOCK -> worker.processMessages(workerName, batchSize);
+            case LEASE -> worker.processClaimedMessages(workerName, batchSize);
+        };
+
+        concurrency.record(result.fetched(), batchSize, result.failed(), Duration.ofNanos(System.nanoTime() - start));
+        stats.workerActivity(workerName, result.fetched());
+        return result.fetched();
     }
 
     @Scheduled(fixedDelay = 8000)
     public void sweepPoisonedMessages(){
         worker.processPoisonedMessages();
-    } //If the server goes down, when is up will move all messages to DLQ !!!
+    }
 }
 
+record BatchResult(int fetched, int failed) { }
+
+record DispatchResult(int requested, int fetched) { }
+
 @Service
 @Slf4j
 @RequiredArgsConstructor
 class CharacterQueueWorker {
     private final QueueRepo<CharacterQueue, Long> repo;
     private final CharacterQueueProcessor processor;
-    private final ExecutorService executorService = Executors.newFixedThreadPool(5);
+    private final QueueRetention retention;
+    private final ConsumerLiveness liveness;
+    private final ExecutorService executorService = Executors.newVirtualThreadPerTaskExecutor();
+
+    @Value("${queue.character.lease-duration:2m}")
+    private Duration leaseDuration;
+
+    @Value("${queue.character.retention:1d}")
+    private Duration retentionWindow;
+
+    @Value("${queue.character.poison.threshold:1h}")
+    private Duration poisonThreshold;
+
+    @Value("${queue.character.poison.outage-grace:true}")
+    private boolean poisonOutageGrace;
+
+    @Value("${queue.character.poison.page-size:500}")
+    private int poisonPageSize;
+
+    @Value("${queue.character.poison.max-per-pass:10000}")
+    private int poisonMaxPerPass;
 
     @Transactional //Has to be here because we are fetching with SKIP LOCKED here
-    public void processMessages(String workerName) {
-        var queueMessages = fetchMessagesWithLock(workerName);
+    public BatchResult processMessages(String workerName, int batchSize) {
+        var queueMessages = fetchMessagesWithLock(workerName, batchSize);
         log.debug("[{}] Processing {} messages {}", workerName, queueMessages.size(), queueMessages.stream().map(CharacterQueue::getInternalId).toList());
 
+        var acks = processor.pendingAcks();
+        int failed = 0;
         for (CharacterQueue msg : queueMessages) {
-            processor.processMessageWithErrorHandling(workerName, msg);
+            if (!processor.processMessageWithErrorHandling(workerName, msg, acks)) {
+                failed++;
+            }
         }
+
+        acks.flush(repo, CharacterQueue.TABLE_NAME, null); //The rows are locked by this transaction, nobody else can touch them
+        return new BatchResult(queueMessages.size(), failed);
+    }
+
+    //No transaction here, rows are claimed with a lease that is committed right away and every message is acked as soon
+    //as it is done (acks close in time share an UPDATE), so a slow message can't make the lease of the finished ones expire
+    public BatchResult processClaimedMessages(String workerName, int batchSize) {
+        var lockedBy = ClaimToken.next(workerName);
+        var queueMessages = claimMessages(workerName, lockedBy, batchSize);
+        log.debug("[{}] Processing {} claimed messages {}", workerName, queueMessages.size(), queueMessages.stream().map(CharacterQueue::getInternalId).toList());
+
+        int failed = 0;
+        for (CharacterQueue msg : queueMessages) {
+            //The ones behind a slow message may have been claimed again by now, processing them would be a duplicate
+            if (leaseExpired(msg)) {
+                log.warn("[{}] Lease on message {} expired before it was processed, leaving it to the next claim", workerName, msg.getInternalId());
+                continue;
+            }
+            if (!processor.processClaimedMessageWithErrorHandling(workerName, lockedBy, msg)) {
+                failed++;
+            }
+        }
+
+        return new BatchResult(queueMessages.size(), failed);
+    }
+
+    private static boolean leaseExpired(CharacterQueue msg) {
+        return msg.getLockedUntil() != null && LocalDateTime.now().isAfter(msg.getLockedUntil());
+    }
+
+    //Every message runs on its own virtual thread, the claimer only waits for free slots in the limiter
+    public DispatchResult dispatchClaimedMessages(String workerName, int batchSize, InFlightLimiter limiter, ExecutorService virtualThreads,
+                                       BiConsumer<Boolean, Duration> onProcessed) {
+        int permits;
+        try {
+            permits = limiter.acquireUpTo(batchSize);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return new DispatchResult(0, 0);
+        }
+
+        var lockedBy = ClaimToken.next(workerName);
+        var queueMessages = limiter.withConnection(() -> claimMessages(workerName, lockedBy, permits));
+        limiter.release(permits - queueMessages.size());
+        log.debug("[{}] Dispatching {} claimed messages {}, {} in flight", workerName, queueMessages.size(), queueMessages.stream().map(CharacterQueue::getInternalId).toList(), limiter.inFlight());
+
+        for (CharacterQueue msg : queueMessages) {
+            virtualThreads.submit(() -> {
+                var start = System.nanoTime();
+                try {
+                    var processed = processor.processClaimedMessageWithErrorHandling(workerName, lockedBy, msg, limiter);
+                    onProcessed.accept(!processed, Duration.ofNanos(System.nanoTime() - start));
+                } finally {
+                    limiter.release(1);
+                }
+            });
+        }
+
+        return new DispatchResult(permits, queueMessages.size());
     }
 
-    //Don't use, sadly, it doesn't work.
     /**
-     * Can't use transactional, because every CompletableFuture executes in a different thread.
-     * That means the CompletableFuture thread can't update the msg because it is outside the transaction.
-     * That also means that the lock on the original thread is never released. Deadlock.
+     * Can't be done with the LOCK mode, every CompletableFuture executes in a different thread outside the transaction
+     * that holds the locks, so the msg can't be updated and the lock on the original thread is never released. Deadlock.
+     * With a lease nothing is held by this thread, every message is acked on its own (acks close in time share an UPDATE).
      */
-    public void processMessagesInParallel(String workerName) {
-        var queueMessages = fetchMessagesWithLock(workerName);
+    public void processMessagesInParallel(String workerName, int batchSize) {
+        var lockedBy = ClaimToken.next(workerName);
+        var queueMessages = claimMessages(workerName, lockedBy, batchSize);
         log.debug("[{}] Processing {} messages {}", workerName, queueMessages.size(), queueMessages.stream().map(CharacterQueue::getInternalId).toList());
 
         // Parallel Processing every message
         List<CompletableFuture<Void>> futures = new ArrayList<>();
         for (CharacterQueue msg : queueMessages) {
-            CompletableFuture<Void> future = CompletableFuture.runAsync(() -> processor.processMessageWithErrorHandling(workerName, msg), executorService);
+            CompletableFuture<Void> future = CompletableFuture.runAsync(() -> processor.processClaimedMessageWithErrorHandling(workerName, lockedBy, msg), executorService);
             futures.add(future);
         }
 
@@ -119,37 +334,75 @@ class CharacterQueueWorker {
         }
     }
 
-    @Transactional
+    //Bounded pass in keyset pages over the arrived_at index, every page is its own transaction, so a big backlog never
+    //ends up in memory nor in one huge transaction
     public void processPoisonedMessages(){
-        log.trace("Fetching messages to move to DLQ");
-        var messages = fetchPoisonedMessages();
+        var arrivedBefore = poisonedArrivedBefore();
+        if (arrivedBefore.isEmpty()) {
+            return;
+        }
 
-        if(messages.isEmpty()){
+        log.trace("Moving messages arrived before {} to DLQ", arrivedBefore.get());
+        QueueKey<Long> after = null;
+        long total = 0;
+        List<QueueKey<Long>> page;
+        do {
+            page = movePoisonedMessages(arrivedBefore.get(), after);
+            if (!page.isEmpty()) {
+                after = page.getLast();
+            }
+            total += page.size();
+        } while (page.size() == poisonPageSize && total < poisonMaxPerPass && !Thread.currentThread().isInterrupted());
+
+        if (total == 0) {
             log.trace("No messages to move to DLQ");
-            return;
+        } else {
+            log.info("Moved {} poisoned messages to DLQ", total);
+        }
+    }
+
+    //With the outage grace only time with consumers alive counts, nothing is poisoned until they've been up for the whole threshold
+    private Optional<LocalDateTime> poisonedArrivedBefore() {
+        var arrivedBefore = LocalDateTime.now().minus(poisonThreshold);
+        if (!poisonOutageGrace) {
+            return Optional.of(arrivedBefore);
         }
 
-        processor.processPoisonedMessages(messages);
+        var aliveSince = liveness.aliveSince(CharacterQueue.TABLE_NAME);
+        if (aliveSince.isEmpty() || aliveSince.get().isAfter(arrivedBefore)) {
+            log.debug("Consumers alive since {}, poison sweep waits until they've been up for {}", aliveSince.orElse(null), poisonThreshold);
+            return Optional.empty();
+        }
+        return Optional.of(arrivedBefore);
     }
 
-    private List<CharacterQueue> fetchPoisonedMessages() {
+    private List<QueueKey<Long>> movePoisonedMessages(LocalDateTime arrivedBefore, QueueKey<Long> after) {
         try {
-            return repo.lockPoisonedMessages(CharacterQueue.TABLE_NAME);
+            return processor.processPoisonedMessages(arrivedBefore, after, poisonPageSize);
         } catch (Exception e) {
-            log.error("Error retrieving queue messages from DB, abnormal: {}", e.getMessage());
+            log.error("Error moving poisoned messages to DLQ, abnormal: {}", e.getMessage());
             return List.of();
         }
     }
 
-    List<CharacterQueue> fetchMessagesWithLock(final String workerName) {
+    List<CharacterQueue> fetchMessagesWithLock(final String workerName, final int batchSize) {
         try {
-            return repo.lockNextMessages(CharacterQueue.TABLE_NAME, 3, CharacterQueue.MAX_RETRIES);
+            return repo.lockNextMessages(CharacterQueue.TABLE_NAME, batchSize, CharacterQueue.MAX_RETRIES);
         } catch (Exception e) {
             log.error("[{}] Error retrieving queue messages from DB, abnormal: {}", workerName, e.getMessage());
             return List.of();
         }
     }
 
+    List<CharacterQueue> claimMessages(final String workerName, final String lockedBy, final int batchSize) {
+        try {
+            return repo.claimNextMessages(CharacterQueue.TABLE_NAME, batchSize, CharacterQueue.MAX_RETRIES, lockedBy, leaseDuration);
+        } catch (Exception e) {
+            log.error("[{}] Error claiming queue messages from DB, abnormal: {}", workerName, e.getMessage());
+            return List.of();
+        }
+    }
+
     boolean hasAccessToQueue() {
         try {
             repo.lockNextMessages(CharacterQueue.TABLE_NAME, 3, CharacterQueue.MAX_RETRIES);
@@ -160,7 +413,7 @@ class CharacterQueueWorker {
     }
 
     void deleteOldMessages() {
-        repo.deleteOldMessages(CharacterQueue.TABLE_NAME);
+        retention.purge(repo, CharacterQueue.TABLE_NAME, retentionWindow);
     }
 }
 
@@ -172,33 +425,133 @@ class CharacterQueueProcessor {
     private final Emitter emitter;
     private final CharacterProcessor domainService;
     private final CharacterQueueErrorHandler errorHandler;
+    private final SavepointRunner savepointRunner;
     private final ObjectMapper objectMapper;
+    private final QueueMetrics metrics;
+
+    @Value("${queue.character.ack.window:2ms}")
+    private Duration ackWindow;
+
+    @Value("${queue.character.ack.max-batch-size:500}")
+    private int ackMaxBatchSize;
+
+    @Value("${queue.character.backoff.initial-delay:1s}")
+    private Duration backoffInitialDelay;
+
+    @Value("${queue.character.backoff.max-delay:1m}")
+    private Duration backoffMaxDelay;
+
+    @Value("${queue.character.backoff.jitter:0.5}")
+    private double backoffJitter;
 
-    void processMessageWithErrorHandling(final String workerName, final CharacterQueue msg) {
+    @Value("${queue.character.claim-mode:LOCK}")
+    private ClaimMode claimMode;
+
+    private RetryBackoff backoff;
+    private WindowedAcks<Long> windowedAcks; //Null in LOCK mode, where the batch transaction acks everything
+
+    @PostConstruct
+    void startAcks() {
+        //Failed messages wait before their next attempt, so they don't keep taking slots from the fresh ones
+        backoff = new RetryBackoff(backoffInitialDelay, backoffMaxDelay, backoffJitter);
+        //Only leased messages are acked one by one, on platform or virtual threads alike
+        if (claimMode == ClaimMode.LEASE) {
+            windowedAcks = new WindowedAcks<>(repo, CharacterQueue.TABLE_NAME, backoff, ackWindow, ackMaxBatchSize);
+        }
+    }
+
+    PendingAcks<Long> pendingAcks() {
+        return new PendingAcks<>(backoff);
+    }
+
+    @PreDestroy
+    void stopAcks() {
+        if (windowedAcks != null) {
+            windowedAcks.close();
+        }
+    }
+
+    //Every message gets its own savepoint, a failure only rolls back that message and the rest of the batch still commits
+    boolean processMessageWithErrorHandling(final String workerName, final CharacterQueue msg, final PendingAcks<Long> acks) {
         try {
             log.trace("[{}] Processing message {} with data: {}", workerName, msg.getInternalId(), msg.getData());
-            processMessage(msg);
+            savepointRunner.runIsolated(() -> handleMessage(msg, emitter));
+            acks.processed(msg.getInternalId());
+            return true;
+        } catch (Exception e) {
+            log.error("[{}] Error processing message {}: {}", workerName, msg.getInternalId(), e.getMessage());
+            handleError(workerName, msg, acks);
+            return false;
+        }
+    }
+
+    //Only the failure is recorded inside the savepoint, the DLQ move goes with the acks at the end of the batch transaction:
+    //a repository joining the transaction from inside a savepoint would mark all of it rollback-only when it fails
+    private void handleError(final String workerName, final CharacterQueue msg, final PendingAcks<Long> acks) {
+        try {
+            if (savepointRunner.runIsolated(() -> errorHandler.markFailed(workerName, msg, emitter))) {
+                acks.failed(msg.getInternalId());
+            } else {
+                acks.deadLettered(msg.getInternalId());
+                msg.markAsDeleted(emitter); //Sent once the batch commits
+            }
+        } catch (Exception e) {
+            log.error("[{}] Error handling failure of message {}, it will be retried: {}", workerName, msg.getInternalId(), e.getMessage());
+        }
+    }
+
+    boolean processClaimedMessageWithErrorHandling(final String workerName, final String lockedBy, final CharacterQueue msg) {
+        return processClaimedMessageWithErrorHandling(workerName, lockedBy, msg, InFlightLimiter.UNBOUNDED);
+    }
+
+    //Messages finishing on their own, the ack waits for the window so it shares the UPDATE with the ones around it.
+    //There is no transaction to send the update after, it waits for its ack instead: a lost lease never shows as processed
+    boolean processClaimedMessageWithErrorHandling(final String workerName, final String lockedBy, final CharacterQueue msg, final InFlightLimiter limiter) {
+        var processedUpdate = new UpdateAfterAck(emitter);
+        try {
+            log.trace("[{}] Processing claimed message {} with data: {}", workerName, msg.getInternalId(), msg.getData());
+            handleMessage(msg, processedUpdate);
         } catch (Exception e) {
             log.error("[{}] Error processing message {}: {}", workerName, msg.getInternalId(), e.getMessage());
-            errorHandler.handle(workerName, msg);
+            var failedUpdate = new UpdateAfterAck(emitter);
+            if (limiter.withConnection(() -> errorHandler.handleClaimed(workerName, lockedBy, msg, failedUpdate))
+                    && acknowledge(workerName, msg, () -> windowedAcks.nack(msg.getInternalId(), lockedBy))) {
+                failedUpdate.send();
+            }
+            return false;
+        }
+
+        if (acknowledge(workerName, msg, () -> windowedAcks.ack(msg.getInternalId(), lockedBy))) {
+            processedUpdate.send();
+        }
+        return true;
+    }
+
+    //A failed ack must not count as a failed message, the lease will expire and it will be processed again
+    private boolean acknowledge(final String workerName, final CharacterQueue msg, final Supplier<Boolean> ack) {
+        try {
+            if (ack.get()) {
+                return true;
+            }
+            log.warn("[{}] Lease on message {} expired before ack, it will be processed again", workerName, msg.getInternalId());
+        } catch (Exception e) {
+            log.error("[{}] Error acknowledging message {}, it will be processed again: {}", workerName, msg.getInternalId(), e.getMessage());
         }
+        return false;
     }
 
     @SneakyThrows
-    private void processMessage(final CharacterQueue msg) {
+    private void handleMessage(final CharacterQueue msg, final Emitter emitter) {
         var character = objectMapper.readValue(msg.getData(), Character.class);
 
         log.trace("Processing message {} with data: {}", msg.getInternalId(), character);
-        domainService.handle(character);
+        metrics.of(CharacterQueue.TABLE_NAME).process().record(() -> domainService.handle(character));
         msg.markAsProcessed(emitter);
         log.trace("Processed message {}", msg.getInternalId());
-
-        repo.update(msg);
     }
 
-    void processPoisonedMessages(List<CharacterQueue> messages){
-        log.debug("Moving {} messages {} to DLQ", messages.size(), messages.stream().map(CharacterQueue::getInternalId).toList());
-        errorHandler.moveToDLQ(messages);
+    List<QueueKey<Long>> processPoisonedMessages(LocalDateTime arrivedBefore, QueueKey<Long> after, int limit){
+        return errorHandler.movePoisonedToDLQ(arrivedBefore, after, limit);
     }
 }
 
@@ -206,32 +559,82 @@ class CharacterQueueProcessor {
 @RequiredArgsConstructor
 @Slf4j
 class CharacterQueueErrorHandler {
-    private final DeadLetterQueueHandler deadLetterQueueHandler;
     private final Emitter emitter;
     private final QueueRepo<CharacterQueue, Long> repo;
 
-    //All has to happen on the same transaction @Transactional(propagation = Propagation.REQUIRES_NEW)
-    void handle(final String workerName, final CharacterQueue msg) {
-        msg.markAsFailedToProcess(emitter);
+    //True when the message stays in the queue to be retried, the caller nacks it together with the rest of its batch.
+    //False when it is out of retries and has to go to the DLQ
+    boolean markFailed(final String workerName, final CharacterQueue msg, final Emitter updates) {
+        msg.markAsFailedToProcess(updates);
 
         if(!msg.canRetry()){
             log.warn("[{}] Message {} with id {} has reached the maximum number of retries ({}), moving to Dead Letter Queue", workerName, msg.getInternalId(), msg.getMessageId(), CharacterQueue.MAX_RETRIES);
-            moveToDLQ(List.of(msg));
-        } else {
-            repo.update(msg);
+            return false;
         }
+        return true;
     }
 
-    public void moveToDLQ(final List<CharacterQueue> messages) {
-        messages.forEach(msg -> {
-            log.trace("Moving message {} with id {} to DLQ", msg.getInternalId(), msg.getMessageId());
+    @Transactional //Claimed messages are processed outside any transaction, DLQ insert and delete must go together
+    boolean handleClaimed(final String workerName, final String lockedBy, final CharacterQueue msg, final Emitter updates) {
+        if (markFailed(workerName, msg, updates)) {
+            return true;
+        }
+        moveToDLQ(List.of(msg), lockedBy);
+        return false;
+    }
 
-            var deadLetterQueue = DeadLetterQueue.Factory.create(msg.getMessageId(), msg.getData(), msg.getArrivedAt(), CharacterQueue.TABLE_NAME);
-            deadLetterQueueHandler.create(deadLetterQueue);
+    //Only while the lease is still ours, a message claimed again by another worker stays with it
+    public void moveToDLQ(final List<CharacterQueue> messages, final String lockedBy) {
+        var moved = repo.moveToDeadLetterQueue(CharacterQueue.TABLE_NAME, messages.stream().map(CharacterQueue::getInternalId).toList(), lockedBy);
+        log.trace("Moved messages {} to DLQ", moved);
+        emitMoved(moved);
+    }
 
-            msg.markAsDeleted(emitter);
-            repo.delete(msg);
-        });
+    List<QueueKey<Long>> movePoisonedToDLQ(final LocalDateTime arrivedBefore, final QueueKey<Long> after, final int limit) {
+        var moved = repo.movePoisonedToDeadLetterQueue(CharacterQueue.TABLE_NAME, arrivedBefore, after, limit);
+        var internalIds = moved.stream().map(QueueKey::internalId).toList();
+        log.debug("Moved {} poisoned messages {} to DLQ", moved.size(), internalIds);
+        emitMoved(internalIds);
+        return moved;
+    }
+
+    //One event for the whole move, the emitter sends it once committed
+    private void emitMoved(final List<Long> internalIds) {
+        if (!internalIds.isEmpty()) {
+            emitter.emitBulkDeletion(internalIds);
+        }
     }
 }
 
+//The update of a claimed message is held until its ack commits, the rest of the events go out as usual
+@RequiredArgsConstructor
+class UpdateAfterAck implements Emitter {
+    private final Emitter emitter;
+    private CharacterQueue updated;
+
+    @Override
+    public void emitUpdate(final CharacterQueue characterQueue) {
+        updated = characterQueue;
+    }
+
+    @Override
+    public void emitCreation(final CharacterQueue characterQueue) {
+        emitter.emitCreation(characterQueue);
+    }
+
+    @Override
+    public void emitDeletion(final CharacterQueue characterQueue) {
+        emitter.emitDeletion(characterQueue);
+    }
+
+    @Override
+    public void emitBulkDeletion(final List<Long> internalIds) {
+        emitter.emitBulkDeletion(internalIds);
+    }
+
+    void send() {
+        if (updated != null) {
+            emitter.emitUpdate(updated);
+        }
+    }
+}
@@ -2,20 +2,31 @@ package jon.db.queue.characters.character_queue.infra;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.github.javafaker.Faker;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import jon.db.queue.characters.Character;
 import jon.db.queue.characters.character_queue.CharacterQueue;
 import jon.db.queue.shared.Emitter;
+import jon.db.queue.shared.queue.GroupCommitBuffer;
 import jon.db.queue.shared.queue.MessageDuplicatedException;
 import jon.db.queue.shared.queue.abstract_queue.QueueRepo;
 import lombok.RequiredArgsConstructor;
 import lombok.SneakyThrows;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
 import org.springframework.stereotype.Service;
 
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Random;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 @Component
 @Slf4j
@@ -25,11 +36,82 @@ public class CharacterQueueProducer {
 
     private static final Random RANDOM = new Random();
 
+    @Value("${queue.character.group-commit.enabled:false}")
+    private boolean groupCommitEnabled;
+
+    @Value("${queue.character.group-commit.window:2ms}")
+    private Duration groupCommitWindow;
+
+    @Value("${queue.character.group-commit.max-batch-size:500}")
+    private int groupCommitMaxBatchSize;
+
+    private GroupCommitBuffer<CharacterMessage, PublishResult> groupCommitBuffer;
+
+    @PostConstruct
+    void startGroupCommit() {
+        if (groupCommitEnabled) {
+            groupCommitBuffer = new GroupCommitBuffer<>(CharacterQueue.TABLE_NAME, groupCommitWindow, groupCommitMaxBatchSize,
+                    characterMessageCreator::createAllProvidingData);
+        }
+    }
+
+    @PreDestroy
+    void stopGroupCommit() {
+        if (groupCommitBuffer != null) {
+            groupCommitBuffer.close();
+        }
+    }
+
     public void publish(final UUID messageId, final Character character){
-        var internalId = characterMessageCreator.createProvidingData(messageId, character);
+        var internalId = groupCommitBuffer == null
+                ? characterMessageCreator.createProvidingData(messageId, character)
+                : awaitGroupCommit(publishAsync(messageId, character));
         log.debug("Published message {} with id {}", internalId, messageId);
     }
 
+    //With group commit the message is written together with the ones published concurrently, trading a few ms for fewer commits
+    public CompletableFuture<Long> publishAsync(final UUID messageId, final Character character){
+        if (groupCommitBuffer == null) {
+            try {
+                return CompletableFuture.completedFuture(characterMessageCreator.createProvidingData(messageId, character));
+            } catch (RuntimeException e) {
+                return CompletableFuture.failedFuture(e);
+            }
+        }
+
+        return groupCommitBuffer.submit(new CharacterMessage(messageId, character)).thenApply(result -> {
+            if (result.duplicated()) {
+                throw new MessageDuplicatedException(result.messageId());
+            }
+            return result.internalId();
+        });
+    }
+
+    private Long awaitGroupCommit(CompletableFuture<Long> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException cause) {
+                throw cause;
+            }
+            throw e;
+        }
+    }
+
+    public List<PublishResult> publishAll(final List<CharacterMessage> messages){
+        var results = characterMessageCreator.createAllProvidingData(messages);
+        log.debug("Published {} messages, {} duplicated", results.size(), results.stream().filter(PublishResult::duplicated).count());
+        return results;
+    }
+
+    public record CharacterMessage(UUID messageId, Character character) { }
+
+    public record PublishResult(UUID messageId, Long internalId) {
+        public boolean duplicated() {
+            return internalId == null;
+        }
+    }
+
     @Scheduled(fixedDelay = 3000)
     public void simulateInfluxOfMessages() {
         var messageId = UUID.randomUUID();
@@ -64,7 +146,7 @@ public class CharacterQueueProducer {
             var jsonData = objectMapper.writeValueAsString(character);
             var queueMessage = CharacterQueue.Factory.create(messageId == null ? UUID.randomUUID() : messageId, jsonData);
 
-            var internalId = repo.create(queueMessage);
+            var internalId = repo.createIfAbsent(queueMessage).orElseThrow(() -> new MessageDuplicatedException(queueMessage.getMessageId()));
             queueMessage.markAsPersisted(internalId, emitter);
 
             log.debug("Created message [{}] with data {}", internalId, jsonData);
@@ -72,6 +154,34 @@ public class CharacterQueueProducer {
             return internalId;
         }
 
+        @SneakyThrows
+        public List<PublishResult> createAllProvidingData(List<CharacterMessage> messages) {
+            List<CharacterQueue> queueMessages = new ArrayList<>();
+            for (CharacterMessage message : messages) {
+                var jsonData = objectMapper.writeValueAsString(message.character());
+                queueMessages.add(CharacterQueue.Factory.create(message.messageId() == null ? UUID.randomUUID() : message.messageId(), jsonData));
+            }
+
+            var internalIds = repo.createAll(queueMessages);
+
+            //The same messageId can come twice in one batch, only the first one is considered created
+            Set<UUID> persisted = new HashSet<>();
+            List<PublishResult> results = new ArrayList<>();
+            for (CharacterQueue queueMessage : queueMessages) {
+                var internalId = internalIds.get(queueMessage.getMessageId());
+
+                if (internalId != null && persisted.add(queueMessage.getMessageId())) {
+                    queueMessage.markAsPersisted(internalId, emitter);
+                    results.add(new PublishResult(queueMessage.getMessageId(), internalId));
+                } else {
+                    log.debug("Message with id {} already exists in the queue", queueMessage.getMessageId());
+                    results.add(new PublishResult(queueMessage.getMessageId(), null));
+                }
+            }
+
+            return results;
+        }
+
         public void createWithRandomData(UUID messageId) {
             var character = new Character(faker.gameOfThrones().character(), faker.lordOfTheRings().character());
             createProvidingData(messageId, character);
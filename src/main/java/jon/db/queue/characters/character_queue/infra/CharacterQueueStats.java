@@ -0,0 +1,84 @@
+package jon.db.queue.characters.character_queue.infra;
+
+import jon.db.queue.characters.character_queue.CharacterQueue;
+import jon.db.queue.shared.HttpSseEmitter;
+import jon.db.queue.shared.queue.stats.QueueStats;
+import lombok.RequiredArgsConstructor;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.time.LocalDateTime;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Rolling aggregates of the character queue for the stats mode of the monitor.
+ * Rates are the per-tick differences of the totals the repo counts once an enqueue, ack, retry or DLQ move commits,
+ * so an ack lost to an expired lease is never counted. One compact frame goes out per tick whatever the throughput.
+ * Backlog and oldest message come from the incremental queue stats, the tick never touches the table.
+ */
+@Component
+@RequiredArgsConstructor
+class CharacterQueueStats {
+    private final HttpSseEmitter httpSseEmitter;
+    private final QueueStats queueStats;
+
+    private final Map<String, LongAdder> workerMessages = new ConcurrentHashMap<>();
+
+    private long lastTick = System.nanoTime();
+    private long lastEnqueued;
+    private long lastProcessed;
+    private long lastFailed;
+    private long lastDeadLettered;
+
+    void workerActivity(String workerName, int messages) {
+        workerMessages.computeIfAbsent(workerName, k -> new LongAdder()).add(messages);
+    }
+
+    @Scheduled(fixedRateString = "${queue.character.stats.rate:1000}")
+    public void publish() {
+        var now = System.nanoTime();
+        var seconds = Math.max(now - lastTick, 1) / 1_000_000_000.0;
+        lastTick = now;
+
+        //Always advanced, so the first frame after an idle period doesn't average it in
+        var depth = queueStats.of(CharacterQueue.TABLE_NAME);
+        var enqueued = depth.enqueuedTotal();
+        var processed = depth.ackedTotal();
+        var failed = depth.retriedTotal();
+        var deadLettered = depth.deadLetteredTotal();
+        var frame = new LinkedHashMap<String, Object>();
+        frame.put("enqueuedPerSecond", perSecond(enqueued - lastEnqueued, seconds));
+        frame.put("processedPerSecond", perSecond(processed - lastProcessed, seconds));
+        frame.put("failedPerSecond", perSecond(failed - lastFailed, seconds));
+        frame.put("deadLetteredPerSecond", perSecond(deadLettered - lastDeadLettered, seconds));
+        lastEnqueued = enqueued;
+        lastProcessed = processed;
+        lastFailed = failed;
+        lastDeadLettered = deadLettered;
+
+        var workers = new TreeMap<String, Double>();
+        workerMessages.forEach((worker, messages) -> workers.put(worker, perSecond(messages.sumThenReset(), seconds)));
+        frame.put("workers", workers);
+
+        if (httpSseEmitter.getStatsConnectionsCount() == 0) {
+            return;
+        }
+
+        queueStats.snapshot(CharacterQueue.TABLE_NAME).ifPresent(snapshot -> {
+            frame.put("backlog", snapshot.pending());
+            frame.put("backlogEstimated", snapshot.estimated());
+            frame.put("oldestPendingAgeSeconds", snapshot.oldestPendingAgeSeconds());
+        });
+
+        frame.put("at", LocalDateTime.now().toString());
+        httpSseEmitter.sendStats(frame);
+    }
+
+    private double perSecond(long count, double seconds) {
+        return Math.round(count / seconds * 10) / 10.0;
+    }
+}
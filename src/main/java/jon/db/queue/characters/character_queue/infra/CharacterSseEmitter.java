@@ -5,7 +5,13 @@ import jon.db.queue.shared.Emitter;
 import jon.db.queue.shared.HttpSseEmitter;
 import lombok.RequiredArgsConstructor;
 import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
+import java.util.List;
+import java.util.Map;
+
+//Fields are taken when the event happens, but it only goes out once the transaction commits (right away without one)
 @Component
 @RequiredArgsConstructor
 class CharacterSseEmitter implements Emitter {
@@ -13,16 +19,43 @@ class CharacterSseEmitter implements Emitter {
 
     @Override
     public void emitUpdate(final CharacterQueue msg) {
-        httpSseEmitter.sendMessageUpdated(String.valueOf(msg.getInternalId()), msg.transformFieldsToMap());
+        var id = String.valueOf(msg.getInternalId());
+        var data = msg.transformFieldsToMap();
+        afterCommit(() -> httpSseEmitter.sendMessageUpdated(id, data));
     }
 
     @Override
     public void emitCreation(final CharacterQueue msg) {
-        httpSseEmitter.sendMessageCreated(String.valueOf(msg.getInternalId()), msg.transformFieldsToMap());
+        var id = String.valueOf(msg.getInternalId());
+        var data = msg.transformFieldsToMap();
+        afterCommit(() -> httpSseEmitter.sendMessageCreated(id, data));
     }
 
     @Override
     public void emitDeletion(final CharacterQueue msg) {
-        httpSseEmitter.sendMessageDeleted(String.valueOf(msg.getInternalId()), msg.transformFieldsToMap());
+        var id = String.valueOf(msg.getInternalId());
+        var data = msg.transformFieldsToMap();
+        afterCommit(() -> httpSseEmitter.sendMessageDeleted(id, data));
+    }
+
+    @Override
+    public void emitBulkDeletion(final List<Long> internalIds) {
+        var id = String.valueOf(internalIds.getLast());
+        var data = Map.<String, Object>of("internalIds", List.copyOf(internalIds), "count", internalIds.size());
+        afterCommit(() -> httpSseEmitter.sendMessagesDeleted(id, data));
+    }
+
+    private void afterCommit(Runnable send) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            send.run();
+            return;
+        }
+
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                send.run();
+            }
+        });
     }
 }
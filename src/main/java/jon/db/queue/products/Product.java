@@ -0,0 +1,4 @@
+package jon.db.queue.products;
+
+public record Product(String sku, String name) {
+}
@@ -0,0 +1,14 @@
+package jon.db.queue.products;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+
+@Service
+@Slf4j
+public class ProductProcessor {
+
+    public void handle(Product product){
+        //BIZ LOGIC, USE CASE, HERE
+        log.trace("Processed product {}", product);
+    }
+}
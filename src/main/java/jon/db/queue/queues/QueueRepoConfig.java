@@ -3,10 +3,14 @@ package jon.db.queue.queues;
 import jakarta.persistence.EntityManager;
 import jon.db.queue.characters.character_queue.infra.CharacterQueueSpringJpaRepo;
 import jon.db.queue.queues.product_queue.ProductQueueSpringJpaRepo;
+import jon.db.queue.shared.queue.RecentMessageIds;
 import jon.db.queue.shared.queue.abstract_queue.QueuePostgreRepo;
 import jon.db.queue.shared.queue.abstract_queue.QueueRepo;
+import jon.db.queue.shared.queue.metrics.QueueMetrics;
+import jon.db.queue.shared.queue.stats.QueueStats;
 import jon.db.queue.queues.product_queue.ProductQueue;
 import jon.db.queue.characters.character_queue.CharacterQueue;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
@@ -14,12 +18,16 @@ import org.springframework.context.annotation.Configuration;
 @Configuration
 class QueueRepoConfig {
     @Bean
-    public QueueRepo<CharacterQueue, Long> characterQueueRepository(EntityManager entityManager, CharacterQueueSpringJpaRepo characterQueueJpaRepo) {
-        return new QueuePostgreRepo<>(entityManager, characterQueueJpaRepo, CharacterQueue.class);
+    public QueueRepo<CharacterQueue, Long> characterQueueRepository(EntityManager entityManager, CharacterQueueSpringJpaRepo characterQueueJpaRepo,
+                                                                    @Value("${queue.dedup-cache-size:10000}") int dedupCacheSize,
+                                                                    QueueMetrics metrics, QueueStats stats) {
+        return new QueuePostgreRepo<>(entityManager, characterQueueJpaRepo, CharacterQueue.class, new RecentMessageIds(dedupCacheSize), metrics, stats);
     }
     
     @Bean
-    public QueueRepo<ProductQueue, Long> productQueueRepository(EntityManager entityManager, ProductQueueSpringJpaRepo productQueueJpaRepo) {
-        return new QueuePostgreRepo<>(entityManager, productQueueJpaRepo, ProductQueue.class);
+    public QueueRepo<ProductQueue, Long> productQueueRepository(EntityManager entityManager, ProductQueueSpringJpaRepo productQueueJpaRepo,
+                                                                @Value("${queue.dedup-cache-size:10000}") int dedupCacheSize,
+                                                                QueueMetrics metrics, QueueStats stats) {
+        return new QueuePostgreRepo<>(entityManager, productQueueJpaRepo, ProductQueue.class, new RecentMessageIds(dedupCacheSize), metrics, stats);
     }
 }
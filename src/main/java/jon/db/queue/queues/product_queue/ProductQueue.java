@@ -39,9 +39,13 @@ public class ProductQueue implements QueueEntity<Long> {
     private LocalDateTime arrivedAt;
     private Integer nonTimeoutRetries;
     private LocalDateTime processedAt;
+    private LocalDateTime lockedUntil;
+    private String lockedBy;
+    private LocalDateTime nextAttemptAt; //Arrival until the first failure, then the backoff schedule
 
     public void markAsFailedToProcess() {
         this.nonTimeoutRetries++;
+        releaseLease();
     }
 
     public boolean canRetry() {
@@ -50,6 +54,12 @@ public class ProductQueue implements QueueEntity<Long> {
 
     public void markAsProcessed() {
         this.processedAt = LocalDateTime.now();
+        releaseLease();
+    }
+
+    private void releaseLease() {
+        this.lockedUntil = null;
+        this.lockedBy = null;
     }
 
     @NoArgsConstructor(access = AccessLevel.PRIVATE)
@@ -59,7 +69,10 @@ public class ProductQueue implements QueueEntity<Long> {
             var arrivedAt = LocalDateTime.now();
             var nonTimeoutRetries = 0;
             LocalDateTime processedAt = null;
-            return new ProductQueue(id, messageId, data, arrivedAt, nonTimeoutRetries, processedAt);
+            LocalDateTime lockedUntil = null;
+            String lockedBy = null;
+            var nextAttemptAt = arrivedAt;
+            return new ProductQueue(id, messageId, data, arrivedAt, nonTimeoutRetries, processedAt, lockedUntil, lockedBy, nextAttemptAt);
         }
     }
 }
@@ -0,0 +1,53 @@
+package jon.db.queue.queues.product_queue;
+
+import jon.db.queue.products.Product;
+import jon.db.queue.products.ProductProcessor;
+import jon.db.queue.shared.queue.AdaptiveConcurrency;
+import jon.db.queue.shared.queue.RetryBackoff;
+import jon.db.queue.shared.queue.abstract_queue.QueueRepo;
+import jon.db.queue.shared.queue.engine.QueueDefinition;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.time.Duration;
+
+//Consumed by the queue engine, no consumer code of its own
+@Configuration
+class ProductQueueConfig {
+    @Value("${queue.product.adaptive.max-workers:2}")
+    private int maxWorkers;
+
+    @Value("${queue.product.adaptive.max-batch-size:20}")
+    private int maxBatchSize;
+
+    @Value("${queue.product.weight:1}")
+    private int weight;
+
+    @Value("${queue.product.poll-delay:30s}")
+    private Duration pollDelay;
+
+    @Value("${queue.product.retention:1d}")
+    private Duration retention;
+
+    @Value("${queue.product.poison.threshold:1h}")
+    private Duration poisonThreshold;
+
+    @Bean
+    public QueueDefinition<ProductQueue, Long, Product> productQueueDefinition(QueueRepo<ProductQueue, Long> productQueueRepository,
+                                                                             ProductProcessor processor) {
+        return QueueDefinition.<ProductQueue, Long, Product>builder()
+                .tableName(ProductQueue.TABLE_NAME)
+                .repo(productQueueRepository)
+                .payloadType(Product.class)
+                .handler(processor::handle)
+                .maxRetries(ProductQueue.MAX_RETRIES)
+                .concurrency(new AdaptiveConcurrency.Limits(1, maxWorkers, 1, maxBatchSize, 0.5))
+                .weight(weight)
+                .pollDelay(pollDelay)
+                .backoff(new RetryBackoff(Duration.ofSeconds(1), Duration.ofMinutes(1), 0.5))
+                .retention(retention)
+                .poisonThreshold(poisonThreshold)
+                .build();
+    }
+}
@@ -2,9 +2,12 @@ package jon.db.queue.shared;
 
 import jon.db.queue.characters.character_queue.CharacterQueue;
 
+import java.util.List;
+
 //Used for applying Double Dispatch in the model
 public interface Emitter {
     void emitUpdate(CharacterQueue characterQueue);
     void emitCreation(CharacterQueue characterQueue);
     void emitDeletion(CharacterQueue characterQueue);
+    void emitBulkDeletion(List<Long> internalIds);
 }
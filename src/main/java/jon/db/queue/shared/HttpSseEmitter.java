@@ -1,106 +1,311 @@
 package jon.db.queue.shared;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PreDestroy;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
 import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
 
+/**
+ * Fan-out of queue events to the SSE clients, fully decoupled from whoever publishes them.
+ * Publishing only puts the event in a bounded ring buffer (the oldest is overwritten when full), never blocks.
+ * A dispatcher thread copies every event to a bounded buffer per client, and every client has its own sender,
+ * so a slow browser only delays itself. When a client buffer is full the event is dropped or the client disconnected.
+ * Every event is serialized once into a frame shared by all the clients, instead of once per client.
+ * Events are numbered and kept in a journal, a client reconnecting with Last-Event-ID gets exactly what it missed
+ * and a new one gets the tail. Only when that range is gone the caller's snapshot (i.e. from the DB) is used.
+ * Stats clients get no per-message events, only the aggregated frames pushed by sendStats at a fixed rate.
+ */
 @Service
 @Slf4j
 public class HttpSseEmitter {
-    private final Map<String, SseEmitter> emitters = new ConcurrentHashMap<>();
+    private final Map<String, Client> clients = new ConcurrentHashMap<>();
+    private final Map<String, Client> statsClients = new ConcurrentHashMap<>();
     private final AtomicLong emitterCounter = new AtomicLong(0);
 
-    public SseEmitter createEmitter() {
+    private final BlockingQueue<SseMessage> ringBuffer;
+    private final SseJournal journal;
+    private final ObjectMapper objectMapper;
+    private final Timer encoding;
+    private final int tailSize;
+    private final int clientBufferSize;
+    private final SlowClientPolicy slowClientPolicy;
+    private final Counter overwrittenEvents;
+    private final Counter droppedEvents;
+    private final Counter disconnectedClients;
+    private final Thread dispatcher;
+
+    HttpSseEmitter(@Value("${queue.sse.buffer-size:10000}") int bufferSize,
+                   @Value("${queue.sse.client-buffer-size:1000}") int clientBufferSize,
+                   @Value("${queue.sse.slow-client-policy:DISCONNECT}") SlowClientPolicy slowClientPolicy,
+                   @Value("${queue.sse.journal.size:5000}") int journalSize,
+                   @Value("${queue.sse.journal.window:10m}") Duration journalWindow,
+                   @Value("${queue.sse.journal.tail:50}") int tailSize,
+                   ObjectMapper objectMapper,
+                   MeterRegistry meterRegistry) {
+        this.ringBuffer = new ArrayBlockingQueue<>(bufferSize);
+        this.journal = new SseJournal(journalSize, journalWindow);
+        this.tailSize = tailSize;
+        this.objectMapper = objectMapper;
+        this.encoding = Timer.builder("queue.sse.encode").description("Serialization of one event, whatever the number of clients").register(meterRegistry);
+        this.clientBufferSize = clientBufferSize;
+        this.slowClientPolicy = slowClientPolicy;
+        this.overwrittenEvents = Counter.builder("queue.sse.events.overwritten").register(meterRegistry);
+        this.droppedEvents = Counter.builder("queue.sse.events.dropped").register(meterRegistry);
+        this.disconnectedClients = Counter.builder("queue.sse.clients.disconnected").register(meterRegistry);
+        Gauge.builder("queue.sse.clients", clients, Map::size).tag("mode", "events").register(meterRegistry);
+        Gauge.builder("queue.sse.clients", statsClients, Map::size).tag("mode", "stats").register(meterRegistry);
+
+        this.dispatcher = Thread.ofPlatform().name("sse-dispatcher").daemon().start(this::dispatch);
+    }
+
+    /**
+     * @param lastEventId Last-Event-ID sent by the browser on reconnect, null for a new client
+     * @param snapshot only called when the journal can't cover the client, its events go first
+     */
+    public SseEmitter createEmitter(final String lastEventId, final Supplier<List<SnapshotEvent>> snapshot) {
         String emitterId = String.valueOf(emitterCounter.incrementAndGet());
         SseEmitter emitter = new SseEmitter(Long.MAX_VALUE); // No timeout
+        var client = new Client(emitterId, emitter);
 
-        // Callback when completed
-        emitter.onCompletion(() -> {
-            log.info("SSE connection completed for client: {}", emitterId);
-            emitters.remove(emitterId);
-        });
-
-        // Callback when timed out
-        emitter.onTimeout(() -> {
-            log.info("SSE connection timed out for client: {}", emitterId);
-            emitter.complete();
-            emitters.remove(emitterId);
-        });
+        var now = System.currentTimeMillis();
+        var lastSeq = parseSeq(lastEventId);
+        long replayAfter;
+        List<SseJournal.Entry> fromSnapshot = List.of();
+        if (lastSeq != null && journal.covers(lastSeq, now)) {
+            replayAfter = lastSeq;
+            log.debug("Client {} reconnected after event {}, replaying from memory", emitterId, lastSeq);
+        } else if (lastSeq == null && !journal.isEmpty(now)) {
+            replayAfter = Math.max(0, journal.lastSeq() - tailSize);
+        } else {
+            //Snapshot taken before registering, replaying the journal from that point covers whatever happens meanwhile
+            replayAfter = journal.lastSeq();
+            fromSnapshot = snapshot.get().stream()
+                    .map(event -> new SseJournal.Entry(replayAfter, SseFrame.encode(objectMapper, replayAfter, event.name(), event.data()), now))
+                    .toList();
+            log.debug("Client {} can't be served from memory (last event {}), sending snapshot", emitterId, lastSeq);
+        }
 
-        // Callback when error occurred
-        emitter.onError(ex -> {
-            log.error("SSE error for client: {}", emitterId, ex);
-            emitters.remove(emitterId);
-        });
+        registerCallbacks(client);
 
-        emitters.put(emitterId, emitter);
+        //Same lock as the dispatcher, no event can fall between the replay and the live ones
+        synchronized (journal) {
+            var replay = new ArrayList<>(fromSnapshot);
+            replay.addAll(journal.after(replayAfter));
+            clients.put(emitterId, client);
+            client.start(replay);
+        }
         log.info("New SSE connection established with client: {}", emitterId);
 
         return emitter;
     }
 
-    public void sendMessageCreated(final String id, final Map<String, Object> data) {
-        List<String> deadEmitters = new CopyOnWriteArrayList<>();
+    //Aggregated frames only, their cost doesn't depend on the message throughput
+    public SseEmitter createStatsEmitter() {
+        String emitterId = String.valueOf(emitterCounter.incrementAndGet());
+        var client = new Client(emitterId, new SseEmitter(Long.MAX_VALUE));
+        registerCallbacks(client);
 
-        emitters.forEach((client, emitter) -> {
-            try {
-                var sseEvent = SseEmitter.event().id(id).name("message").data(data);
-                emitter.send(sseEvent);
-                log.trace("Message sent to client: {}", client);
-            } catch (IOException e) {
-                log.warn("Failed to send message to client: {}", client, e);
-                deadEmitters.add(client);
-            }
-        });
+        statsClients.put(emitterId, client);
+        client.start(List.of());
+        log.info("New SSE stats connection established with client: {}", emitterId);
 
-        // Clean up dead emitters
-        deadEmitters.forEach(emitters::remove);
+        return client.emitter;
     }
 
-    public void sendMessageUpdated(final String id, final Map<String, Object> data) {
-        List<String> deadEmitters = new CopyOnWriteArrayList<>();
+    public void sendStats(final Map<String, Object> data) {
+        if (statsClients.isEmpty()) {
+            return;
+        }
 
-        emitters.forEach((client, emitter) -> {
-            try {
-                var sseEvent = SseEmitter.event().id(id).name("update").data(data);
-                emitter.send(sseEvent);
-                log.trace("Message sent to client: {}", client);
-            } catch (IOException e) {
-                log.warn("Failed to send message to client: {}", client, e);
-                deadEmitters.add(client);
+        var entry = new SseJournal.Entry(0, encode(System.currentTimeMillis(), new SseMessage("stats", data)), 0);
+        statsClients.values().forEach(client -> {
+            if (!client.pending.offer(entry)) {
+                onSlowClient(client);
             }
         });
+    }
 
-        // Clean up dead emitters
-        deadEmitters.forEach(emitters::remove);
+    public void sendMessageCreated(final String id, final Map<String, Object> data) {
+        publish(new SseMessage("message", data));
+    }
+
+    public void sendMessageUpdated(final String id, final Map<String, Object> data) {
+        publish(new SseMessage("update", data));
     }
 
     public void sendMessageDeleted(final String id, final Map<String, Object> data) {
-        List<String> deadEmitters = new CopyOnWriteArrayList<>();
+        publish(new SseMessage("delete", data));
+    }
 
-        emitters.forEach((client, emitter) -> {
+    //Aggregated event for a set-based delete, one frame instead of one per message
+    public void sendMessagesDeleted(final String id, final Map<String, Object> data) {
+        publish(new SseMessage("delete-bulk", data));
+    }
+
+    public int getActiveConnectionsCount() {
+        return clients.size() + statsClients.size();
+    }
+
+    public int getStatsConnectionsCount() {
+        return statsClients.size();
+    }
+
+    //Never blocks, monitoring must not slow down the processing
+    private void publish(SseMessage message) {
+        while (!ringBuffer.offer(message)) {
+            if (ringBuffer.poll() != null) {
+                overwrittenEvents.increment();
+            }
+        }
+    }
+
+    private void dispatch() {
+        while (!Thread.currentThread().isInterrupted()) {
+            SseMessage message;
             try {
-                var sseEvent = SseEmitter.event().id(id).name("delete").data(data);
-                emitter.send(sseEvent);
-                log.trace("Message sent to client: {}", client);
-            } catch (IOException e) {
-                log.warn("Failed to send message to client: {}", client, e);
-                deadEmitters.add(client);
+                message = ringBuffer.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            synchronized (journal) {
+                SseJournal.Entry entry;
+                try {
+                    entry = journal.append(seq -> encode(seq, message), System.currentTimeMillis());
+                } catch (IllegalArgumentException e) {
+                    log.error("Event {} discarded: {}", message.name(), e.getMessage());
+                    continue;
+                }
+                clients.values().forEach(client -> {
+                    if (!client.pending.offer(entry)) {
+                        onSlowClient(client);
+                    }
+                });
             }
+        }
+    }
+
+    private SseFrame encode(long seq, SseMessage message) {
+        return encoding.record(() -> SseFrame.encode(objectMapper, seq, message.name(), message.data()));
+    }
+
+    private void onSlowClient(Client client) {
+        if (slowClientPolicy == SlowClientPolicy.DROP) {
+            droppedEvents.increment();
+            log.trace("Client {} is too slow, event dropped", client.id);
+            return;
+        }
+
+        disconnectedClients.increment();
+        log.warn("Client {} is too slow, disconnecting it", client.id);
+        client.emitter.complete(); //The browser reconnects on its own
+        remove(client);
+    }
+
+    private void registerCallbacks(Client client) {
+        var emitterId = client.id;
+        // Callback when completed
+        client.emitter.onCompletion(() -> {
+            log.info("SSE connection completed for client: {}", emitterId);
+            remove(client);
         });
 
-        // Clean up dead emitters
-        deadEmitters.forEach(emitters::remove);
+        // Callback when timed out
+        client.emitter.onTimeout(() -> {
+            log.info("SSE connection timed out for client: {}", emitterId);
+            client.emitter.complete();
+            remove(client);
+        });
+
+        // Callback when error occurred
+        client.emitter.onError(ex -> {
+            log.error("SSE error for client: {}", emitterId, ex);
+            remove(client);
+        });
     }
 
-    public int getActiveConnectionsCount() {
-        return emitters.size();
+    private Long parseSeq(String lastEventId) {
+        try {
+            return lastEventId != null ? Long.parseLong(lastEventId) : null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private void remove(Client client) {
+        clients.remove(client.id);
+        statsClients.remove(client.id);
+        client.stop();
+    }
+
+    @PreDestroy
+    void stop() {
+        dispatcher.interrupt();
+        clients.values().forEach(client -> client.emitter.complete());
+        statsClients.values().forEach(client -> client.emitter.complete());
+    }
+
+    public enum SlowClientPolicy { DROP, DISCONNECT }
+
+    //Snapshot sent to a client the journal can't serve, i.e. read from the DB
+    public record SnapshotEvent(String name, Map<String, Object> data) { }
+
+    record SseMessage(String name, Object data) { }
+
+    private final class Client {
+        private final String id;
+        private final SseEmitter emitter;
+        private final BlockingQueue<SseJournal.Entry> pending = new ArrayBlockingQueue<>(clientBufferSize);
+        private Thread sender;
+
+        private Client(String id, SseEmitter emitter) {
+            this.id = id;
+            this.emitter = emitter;
+        }
+
+        private void start(List<SseJournal.Entry> replay) {
+            sender = Thread.ofVirtual().name("sse-client-" + id).start(() -> send(replay));
+        }
+
+        private void stop() {
+            if (sender != null) {
+                sender.interrupt();
+            }
+        }
+
+        private void send(List<SseJournal.Entry> replay) {
+            var replaying = replay.iterator();
+            while (!Thread.currentThread().isInterrupted()) {
+                try {
+                    var entry = replaying.hasNext() ? replaying.next() : pending.take();
+                    emitter.send(entry.frame().items());
+                    log.trace("Message sent to client: {}", id);
+                } catch (InterruptedException e) {
+                    return;
+                } catch (IOException | IllegalStateException e) {
+                    log.warn("Failed to send message to client: {}", id, e);
+                    clients.remove(id);
+                    statsClients.remove(id);
+                    return;
+                }
+            }
+        }
     }
 }
@@ -0,0 +1,26 @@
+package jon.db.queue.shared;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.http.MediaType;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyEmitter;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+
+//One event already encoded as an SSE frame, serialized once and written as is to every client
+record SseFrame(Set<ResponseBodyEmitter.DataWithMediaType> items) {
+
+    static SseFrame encode(ObjectMapper objectMapper, long id, String name, Object data) {
+        try {
+            var out = new ByteArrayOutputStream(256);
+            out.writeBytes(("id:" + id + "\nevent:" + name + "\ndata:").getBytes(StandardCharsets.UTF_8));
+            out.writeBytes(objectMapper.writeValueAsBytes(data)); //Single line, no newlines to escape
+            out.writeBytes("\n\n".getBytes(StandardCharsets.UTF_8));
+            return new SseFrame(Set.of(new ResponseBodyEmitter.DataWithMediaType(out.toByteArray(), MediaType.TEXT_PLAIN)));
+        } catch (JsonProcessingException e) {
+            throw new IllegalArgumentException("Event " + name + " can't be serialized", e);
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package jon.db.queue.shared;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.function.LongFunction;
+
+//Last events sent, bounded by size and age, so reconnecting clients get what they missed without going to the DB
+class SseJournal {
+    private final int maxSize;
+    private final Duration window;
+    private final Deque<Entry> entries = new ArrayDeque<>();
+    private long lastSeq;
+
+    SseJournal(int maxSize, Duration window) {
+        this.maxSize = maxSize;
+        this.window = window;
+        //Ids of a previous run (i.e. before a restart) always fall before this one's, so those clients get a snapshot
+        this.lastSeq = System.currentTimeMillis() * 1000;
+    }
+
+    //The frame is encoded with its id, once for every client
+    synchronized Entry append(LongFunction<SseFrame> encoder, long now) {
+        var entry = new Entry(lastSeq + 1, encoder.apply(lastSeq + 1), now);
+        lastSeq++;
+        entries.addLast(entry);
+        evict(now);
+        return entry;
+    }
+
+    //True when every event after seq is still here
+    synchronized boolean covers(long seq, long now) {
+        evict(now);
+        var first = entries.isEmpty() ? lastSeq + 1 : entries.getFirst().seq();
+        return seq >= first - 1 && seq <= lastSeq;
+    }
+
+    synchronized boolean isEmpty(long now) {
+        evict(now);
+        return entries.isEmpty();
+    }
+
+    synchronized long lastSeq() {
+        return lastSeq;
+    }
+
+    synchronized List<Entry> after(long seq) {
+        return entries.stream().filter(entry -> entry.seq() > seq).toList();
+    }
+
+    private void evict(long now) {
+        var oldest = now - window.toMillis();
+        while (!entries.isEmpty() && (entries.size() > maxSize || entries.getFirst().time() < oldest)) {
+            entries.removeFirst();
+        }
+    }
+
+    record Entry(long seq, SseFrame frame, long time) { }
+}
@@ -0,0 +1,131 @@
+package jon.db.queue.shared.queue;
+
+import com.zaxxer.hikari.HikariDataSource;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+
+import javax.sql.DataSource;
+import java.time.Duration;
+
+/**
+ * Grows and shrinks the batch size and the number of active workers of a queue between hard limits (AIMD).
+ * Backlog depth is inferred from how full the fetched batches come back, so no count(*) is needed.
+ * It backs off fast (halves) when the error rate is high, the processing latency degrades or Hikari is saturated,
+ * and grows slowly (one step) while batches come back full and everything is healthy.
+ */
+@Slf4j
+public class AdaptiveConcurrency {
+    private static final double LATENCY_DEGRADATION = 2.0;
+    private static final double POOL_SATURATION = 0.9;
+    private static final double EWMA_WEIGHT = 0.2;
+
+    private final String queueName;
+    private final Limits limits;
+    private final DataSource dataSource;
+
+    private volatile int workers;
+    private volatile int batchSize;
+
+    // Since the last adjustment
+    private long fetched;
+    private long requested;
+    private long failed;
+    private long processingNanos;
+
+    private double latencyPerMessage = -1; //Short term
+    private double baselineLatencyPerMessage = -1; //Long term
+
+    public AdaptiveConcurrency(String queueName, Limits limits, DataSource dataSource, MeterRegistry meterRegistry) {
+        this.queueName = queueName;
+        this.limits = limits;
+        this.dataSource = dataSource;
+        this.workers = limits.minWorkers();
+        this.batchSize = limits.minBatchSize();
+
+        Gauge.builder("queue.adaptive.workers", this, AdaptiveConcurrency::workers).tag("queue", queueName).register(meterRegistry);
+        Gauge.builder("queue.adaptive.batch.size", this, AdaptiveConcurrency::batchSize).tag("queue", queueName).register(meterRegistry);
+    }
+
+    public int workers() {
+        return workers;
+    }
+
+    public int batchSize() {
+        return batchSize;
+    }
+
+    public synchronized void record(int batchFetched, int batchRequested, int batchFailed, Duration elapsed) {
+        fetched += batchFetched;
+        requested += batchRequested;
+        failed += batchFailed;
+        if (batchFetched > 0) {
+            processingNanos += elapsed.toNanos();
+        }
+    }
+
+    //For messages processed asynchronously, their batch was already recorded when it was fetched
+    public synchronized void recordMessage(boolean messageFailed, Duration elapsed) {
+        if (messageFailed) {
+            failed++;
+        }
+        processingNanos += elapsed.toNanos();
+    }
+
+    public synchronized void adjust() {
+        if (requested == 0) {
+            return; //Nobody polled, nothing learnt
+        }
+
+        double fullness = (double) fetched / requested;
+        double errorRate = fetched == 0 ? 0 : (double) failed / fetched;
+        boolean latencyDegraded = updateLatency();
+        boolean poolSaturated = isPoolSaturated();
+
+        if (poolSaturated || latencyDegraded || errorRate > limits.maxErrorRate()) {
+            workers = Math.max(limits.minWorkers(), workers / 2);
+            batchSize = Math.max(limits.minBatchSize(), batchSize / 2);
+            log.debug("[{}] Backing off to {} workers with batches of {} (errors {}, latency degraded {}, pool saturated {})",
+                    queueName, workers, batchSize, errorRate, latencyDegraded, poolSaturated);
+        } else if (fullness >= 1.0) {
+            batchSize = Math.min(limits.maxBatchSize(), batchSize + 1);
+            workers = Math.min(limits.maxWorkers(), workers + 1);
+            log.debug("[{}] Backlog is deep, growing to {} workers with batches of {}", queueName, workers, batchSize);
+        } else if (fullness < 0.5) {
+            workers = Math.max(limits.minWorkers(), workers - 1);
+            batchSize = Math.max(limits.minBatchSize(), batchSize - 1);
+            log.trace("[{}] Queue is mostly idle, shrinking to {} workers with batches of {}", queueName, workers, batchSize);
+        }
+
+        fetched = requested = failed = processingNanos = 0;
+    }
+
+    private boolean updateLatency() {
+        if (fetched == 0) {
+            return false;
+        }
+
+        double current = (double) processingNanos / fetched;
+        latencyPerMessage = latencyPerMessage < 0 ? current : EWMA_WEIGHT * current + (1 - EWMA_WEIGHT) * latencyPerMessage;
+        baselineLatencyPerMessage = baselineLatencyPerMessage < 0 ? current : 0.02 * current + 0.98 * baselineLatencyPerMessage;
+
+        return latencyPerMessage > baselineLatencyPerMessage * LATENCY_DEGRADATION;
+    }
+
+    private boolean isPoolSaturated() {
+        if (!(dataSource instanceof HikariDataSource hikari) || hikari.getHikariPoolMXBean() == null) {
+            return false;
+        }
+
+        var pool = hikari.getHikariPoolMXBean();
+        return pool.getThreadsAwaitingConnection() > 0 || pool.getActiveConnections() >= hikari.getMaximumPoolSize() * POOL_SATURATION;
+    }
+
+    public record Limits(int minWorkers, int maxWorkers, int minBatchSize, int maxBatchSize, double maxErrorRate) {
+        public Limits {
+            if (minWorkers < 1 || maxWorkers < minWorkers || minBatchSize < 1 || maxBatchSize < minBatchSize) {
+                throw new IllegalArgumentException("Invalid adaptive concurrency limits");
+            }
+        }
+    }
+}
@@ -0,0 +1,6 @@
+package jon.db.queue.shared.queue;
+
+public enum ClaimMode {
+    LOCK,  //Rows stay locked with SKIP LOCKED for the whole batch transaction
+    LEASE  //Rows are claimed with locked_until/locked_by and processed outside any transaction
+}
@@ -0,0 +1,20 @@
+package jon.db.queue.shared.queue;
+
+import java.lang.management.ManagementFactory;
+import java.util.UUID;
+
+/**
+ * Owner written to locked_by by a LEASE claim, acks and nacks only touch the rows still carrying it.
+ * It is unique per claim: worker names are reused on a node, so a stale worker whose lease expired would otherwise
+ * pass the ownership check of the same rows claimed again by its namesake. Worker and node are kept for debugging.
+ */
+public final class ClaimToken {
+    private static final String NODE_ID = ManagementFactory.getRuntimeMXBean().getName();
+
+    private ClaimToken() {
+    }
+
+    public static String next(String workerName) {
+        return workerName + "@" + NODE_ID + "/" + UUID.randomUUID();
+    }
+}
@@ -0,0 +1,129 @@
+package jon.db.queue.shared.queue;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Coalesces concurrent single-message writes into one batch write.
+ * The first message opens a window, everything arriving before it closes (or until maxBatchSize) is flushed together,
+ * and every caller gets its own result back. While a flush is running the next batch keeps filling up.
+ * The flusher must return one result per message, in the same order.
+ * Close stops accepting messages and waits for the ones already accepted to be flushed, so a normal shutdown loses none.
+ */
+@Slf4j
+public class GroupCommitBuffer<M, R> implements AutoCloseable {
+    private static final Duration CLOSE_CHECK = Duration.ofMillis(10);
+
+    private final BlockingQueue<Pending<M, R>> pending = new LinkedBlockingQueue<>();
+    private final Function<List<M>, List<R>> flusher;
+    private final Duration window;
+    private final int maxBatchSize;
+    private final Thread flusherThread;
+    //Guards running against submit, so nothing can be enqueued after the flusher's final drain
+    private final Object lock = new Object();
+    private volatile boolean running = true;
+
+    public GroupCommitBuffer(String name, Duration window, int maxBatchSize, Function<List<M>, List<R>> flusher) {
+        this.flusher = flusher;
+        this.window = window;
+        this.maxBatchSize = maxBatchSize;
+        this.flusherThread = Thread.ofPlatform().name(name + "-group-commit").daemon().start(this::run);
+    }
+
+    public CompletableFuture<R> submit(M message) {
+        var result = new CompletableFuture<R>();
+        synchronized (lock) {
+            if (!running) {
+                return CompletableFuture.failedFuture(new IllegalStateException("Group commit buffer is closed"));
+            }
+            pending.add(new Pending<>(message, result));
+        }
+        return result;
+    }
+
+    private void run() {
+        while (running) {
+            List<Pending<M, R>> batch = new ArrayList<>();
+            try {
+                var first = pending.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+
+                batch.add(first);
+                collectUntilWindowCloses(batch);
+                flush(batch);
+            } catch (InterruptedException e) {
+                //Nobody is meant to interrupt it, it stops like on close: the flag isn't restored so the last flushes can do I/O
+                stopAccepting();
+                //Whatever was already taken off the queue still gets written
+                if (!batch.isEmpty()) {
+                    flush(batch);
+                }
+            }
+        }
+
+        //Accepted before close, written like any other batch
+        List<Pending<M, R>> leftovers = new ArrayList<>();
+        pending.drainTo(leftovers);
+        for (int from = 0; from < leftovers.size(); from += maxBatchSize) {
+            flush(leftovers.subList(from, Math.min(from + maxBatchSize, leftovers.size())));
+        }
+    }
+
+    //A close cuts the window short, checked every CLOSE_CHECK at most
+    private void collectUntilWindowCloses(List<Pending<M, R>> batch) throws InterruptedException {
+        long deadline = System.nanoTime() + window.toNanos();
+
+        while (batch.size() < maxBatchSize) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0 || !running) {
+                return;
+            }
+            var next = pending.poll(Math.min(remaining, CLOSE_CHECK.toNanos()), TimeUnit.NANOSECONDS);
+            if (next != null) {
+                batch.add(next);
+            }
+        }
+    }
+
+    private void flush(List<Pending<M, R>> batch) {
+        try {
+            var results = flusher.apply(batch.stream().map(Pending::message).toList());
+            for (int i = 0; i < batch.size(); i++) {
+                batch.get(i).result().complete(results.get(i));
+            }
+            log.trace("Group committed {} messages", batch.size());
+        } catch (Exception e) {
+            log.error("Group commit of {} messages failed: {}", batch.size(), e.getMessage());
+            batch.forEach(p -> p.result().completeExceptionally(e));
+        }
+    }
+
+    private void stopAccepting() {
+        synchronized (lock) {
+            running = false;
+        }
+    }
+
+    //Not interrupted: an interrupt during the JDBC I/O of a flush would close the pooled connection
+    @Override
+    public void close() {
+        stopAccepting();
+        try {
+            flusherThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private record Pending<M, R>(M message, CompletableFuture<R> result) { }
+}
@@ -0,0 +1,59 @@
+package jon.db.queue.shared.queue;
+
+import java.util.concurrent.Semaphore;
+import java.util.function.Supplier;
+
+/**
+ * Bounds the messages processed at the same time (downstream capacity) and, separately, the ones using a DB connection.
+ * With a virtual thread per message hundreds can be in flight, but only a few can be acking at once without
+ * draining Hikari.
+ */
+public class InFlightLimiter {
+    public static final InFlightLimiter UNBOUNDED = new InFlightLimiter(Integer.MAX_VALUE, Integer.MAX_VALUE);
+
+    private final int maxInFlight;
+    private final Semaphore messages;
+    private final Semaphore connections;
+
+    public InFlightLimiter(int maxInFlight, int maxConnections) {
+        this.maxInFlight = maxInFlight;
+        this.messages = new Semaphore(maxInFlight);
+        this.connections = new Semaphore(maxConnections);
+    }
+
+    //Blocks until there is room for at least one message, then takes as many as it can up to wanted
+    public int acquireUpTo(int wanted) throws InterruptedException {
+        messages.acquire();
+        int acquired = 1;
+        while (acquired < wanted && messages.tryAcquire()) {
+            acquired++;
+        }
+        return acquired;
+    }
+
+    public void release(int permits) {
+        if (permits > 0) {
+            messages.release(permits);
+        }
+    }
+
+    public <T> T withConnection(Supplier<T> work) {
+        connections.acquireUninterruptibly();
+        try {
+            return work.get();
+        } finally {
+            connections.release();
+        }
+    }
+
+    public void withConnection(Runnable work) {
+        withConnection(() -> {
+            work.run();
+            return null;
+        });
+    }
+
+    public int inFlight() {
+        return maxInFlight - messages.availablePermits();
+    }
+}
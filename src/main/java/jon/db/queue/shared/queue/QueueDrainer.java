@@ -0,0 +1,117 @@
+package jon.db.queue.shared.queue;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.time.Duration;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntSupplier;
+import java.util.function.ToIntFunction;
+
+/**
+ * Workers of a queue with its own pool. A wake-up (notification or poll) starts workers up to the current target,
+ * every worker keeps fetching batches until the queue is empty (a wake-up only comes once per insert) or it is
+ * one of the workers above a lowered target.
+ * The drainer owns the executor, stopping it waits for the batches in progress.
+ * A wake-up that finds every worker busy is remembered: a worker leaving re-checks it, so a message inserted
+ * between a worker's empty fetch and its exit isn't left waiting for the next poll.
+ */
+@Slf4j
+public class QueueDrainer {
+    private final String queueName;
+    private final ExecutorService workers;
+    private final IntSupplier targetWorkers;
+    private final ToIntFunction<String> nextBatch; //Takes the worker name, returns the messages fetched
+    private final AtomicInteger busyWorkers = new AtomicInteger(0);
+    private final AtomicBoolean wakeUpPending = new AtomicBoolean(false);
+
+    private volatile boolean running = true;
+
+    public QueueDrainer(String queueName, ExecutorService workers, IntSupplier targetWorkers, ToIntFunction<String> nextBatch) {
+        this.queueName = queueName;
+        this.workers = workers;
+        this.targetWorkers = targetWorkers;
+        this.nextBatch = nextBatch;
+    }
+
+    public void wakeUp() {
+        wakeUpPending.set(true);
+        startWorkers();
+    }
+
+    private void startWorkers() {
+        int busy;
+        while (running && (busy = busyWorkers.get()) < targetWorkers.getAsInt()) {
+            if (busyWorkers.compareAndSet(busy, busy + 1)) {
+                final String workerName = "Worker-" + (busy + 1);
+                try {
+                    workers.submit(() -> drain(workerName));
+                } catch (RejectedExecutionException e) {
+                    busyWorkers.decrementAndGet(); //Stopping
+                    return;
+                }
+            }
+        }
+    }
+
+    private void drain(String workerName) {
+        boolean counted = true;
+        try {
+            while (running && fetchNextBatch(workerName) > 0) {
+                if (leaveIfSurplus()) {
+                    counted = false;
+                    break;
+                }
+                log.trace("[{}][{}] Fetching next batch", queueName, workerName);
+            }
+        } catch (Exception e) {
+            log.error("[{}][{}] Error draining queue: {}", queueName, workerName, e.getMessage());
+        } finally {
+            if (counted) {
+                busyWorkers.decrementAndGet();
+            }
+            //Set after our last fetch started, it may have found every worker busy: serve it now that there is room
+            if (wakeUpPending.get()) {
+                startWorkers();
+            }
+        }
+    }
+
+    //When the target drops only the workers above it leave, one decrement each, the rest keep draining
+    private boolean leaveIfSurplus() {
+        int busy;
+        while ((busy = busyWorkers.get()) > targetWorkers.getAsInt()) {
+            if (busyWorkers.compareAndSet(busy, busy - 1)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    //Every wake-up before the fetch is served by it
+    private int fetchNextBatch(String workerName) {
+        wakeUpPending.set(false);
+        return nextBatch.applyAsInt(workerName);
+    }
+
+    //No new batches are started, the ones in progress finish
+    public void stop() {
+        running = false;
+        workers.shutdown();
+    }
+
+    public boolean awaitTermination(Duration timeout) {
+        try {
+            if (workers.awaitTermination(timeout.toMillis(), TimeUnit.MILLISECONDS)) {
+                return true;
+            }
+            log.warn("Workers of {} still busy after {}, the messages they hold will be processed again", queueName, timeout);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return false;
+    }
+}
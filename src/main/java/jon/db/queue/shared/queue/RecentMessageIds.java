@@ -0,0 +1,29 @@
+package jon.db.queue.shared.queue;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+//Bounded LRU of message ids known to be on the queue, repeats are rejected without going to the DB
+public class RecentMessageIds {
+    private final Map<UUID, Boolean> ids;
+
+    public RecentMessageIds(final int capacity) {
+        this.ids = Collections.synchronizedMap(new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<UUID, Boolean> eldest) {
+                return size() > capacity;
+            }
+        });
+    }
+
+    public boolean contains(final UUID messageId) {
+        return ids.get(messageId) != null;
+    }
+
+    public void addAll(final Collection<UUID> messageIds) {
+        messageIds.forEach(messageId -> ids.put(messageId, Boolean.TRUE));
+    }
+}
@@ -0,0 +1,26 @@
+package jon.db.queue.shared.queue;
+
+import java.time.Duration;
+
+/**
+ * Delay before a failed message can be claimed again: initialDelay * 2^retries, capped at maxDelay.
+ * Up to jitter (0..1) of that delay is taken off at random, so messages failing together don't come back together.
+ * It is computed by the DB on the nack, every row gets its own jitter within the same UPDATE.
+ */
+public record RetryBackoff(Duration initialDelay, Duration maxDelay, double jitter) {
+    public static final RetryBackoff NONE = new RetryBackoff(Duration.ZERO, Duration.ZERO, 0);
+
+    public RetryBackoff {
+        if (initialDelay.isNegative() || maxDelay.compareTo(initialDelay) < 0 || jitter < 0 || jitter > 1) {
+            throw new IllegalArgumentException("Invalid retry backoff");
+        }
+    }
+
+    public double initialSeconds() {
+        return initialDelay.toMillis() / 1000.0;
+    }
+
+    public double maxSeconds() {
+        return maxDelay.toMillis() / 1000.0;
+    }
+}
@@ -0,0 +1,49 @@
+package jon.db.queue.shared.queue;
+
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.PersistenceContext;
+import lombok.RequiredArgsConstructor;
+import org.hibernate.Session;
+import org.springframework.stereotype.Component;
+
+import java.sql.Connection;
+import java.sql.Savepoint;
+import java.util.function.Supplier;
+
+//JpaTransactionManager can't do Propagation.NESTED with Hibernate, so savepoints are taken on the JDBC connection
+@Component
+@RequiredArgsConstructor
+public class SavepointRunner {
+    @PersistenceContext
+    private final EntityManager entityManager;
+
+    /**
+     * Runs the work inside a savepoint of the current transaction, flushing at the end so all its SQL is covered.
+     * On failure only the work is rolled back and the persistence context is cleared, the outer transaction keeps going.
+     * Checked exceptions thrown sneakily by the work are rolled back and rethrown the same way.
+     */
+    public <T> T runIsolated(final Supplier<T> work) {
+        var session = entityManager.unwrap(Session.class);
+        Savepoint savepoint = session.doReturningWork(Connection::setSavepoint);
+
+        try {
+            var result = work.get();
+            entityManager.flush();
+            session.doWork(connection -> connection.releaseSavepoint(savepoint));
+            return result;
+        } catch (Throwable e) {
+            session.doWork(connection -> connection.rollback(savepoint));
+            //Whatever is managed may hold changes that were just rolled back
+            entityManager.clear();
+            //Precise rethrow: the work declares nothing, so this only widens to what was actually thrown
+            throw e;
+        }
+    }
+
+    public void runIsolated(final Runnable work) {
+        runIsolated(() -> {
+            work.run();
+            return null;
+        });
+    }
+}
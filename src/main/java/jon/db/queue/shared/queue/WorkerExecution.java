@@ -0,0 +1,6 @@
+package jon.db.queue.shared.queue;
+
+public enum WorkerExecution {
+    PLATFORM, //A fixed pool of workers, every one processes its batch sequentially
+    VIRTUAL   //A virtual thread per in-flight message, bounded by an InFlightLimiter. Needs ClaimMode.LEASE
+}
@@ -6,7 +6,11 @@ import java.util.UUID;
 public interface QueueEntity<ID> {
     ID getInternalId();
     UUID getMessageId();
+    String getData();
     LocalDateTime getArrivedAt();
     LocalDateTime getProcessedAt();
     Integer getNonTimeoutRetries();
+    LocalDateTime getLockedUntil();
+    String getLockedBy();
+    LocalDateTime getNextAttemptAt();
 }
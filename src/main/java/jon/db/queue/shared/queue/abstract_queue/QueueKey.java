@@ -0,0 +1,6 @@
+package jon.db.queue.shared.queue.abstract_queue;
+
+import java.time.LocalDateTime;
+
+//Position of a row in arrival order, used as keyset cursor when walking the table in pages
+public record QueueKey<ID>(LocalDateTime arrivedAt, ID internalId) { }
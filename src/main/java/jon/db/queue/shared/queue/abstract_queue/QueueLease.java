@@ -0,0 +1,4 @@
+package jon.db.queue.shared.queue.abstract_queue;
+
+//A leased row and the claim holding it, the ack of a row only counts while its own claim still holds it
+public record QueueLease<ID>(ID internalId, String lockedBy) { }
@@ -2,14 +2,30 @@ package jon.db.queue.shared.queue.abstract_queue;
 
 import jakarta.persistence.EntityManager;
 import jakarta.persistence.PersistenceContext;
+import jakarta.persistence.Table;
 import jon.db.queue.shared.queue.MessageDuplicatedException;
+import jon.db.queue.shared.queue.RecentMessageIds;
+import jon.db.queue.shared.queue.RetryBackoff;
+import jon.db.queue.shared.queue.dead_letter_queue.DeadLetterQueue;
+import jon.db.queue.shared.queue.metrics.QueueMetrics;
+import jon.db.queue.shared.queue.stats.QueueStats;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
-import org.springframework.dao.DataIntegrityViolationException;
+import org.hibernate.Session;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.Duration;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.UUID;
 
@@ -22,6 +38,9 @@ public class QueuePostgreRepo<T extends QueueEntity<ID>, ID> implements QueueRep
     private final QueueSpringJpaRepo<T, ID> queueRepo;
 
     private final Class<T> entityClass;
+    private final RecentMessageIds recentMessageIds;
+    private final QueueMetrics metrics;
+    private final QueueStats stats;
 
     @Override
     public Optional<T> findById(final ID id) {
@@ -33,6 +52,7 @@ public class QueuePostgreRepo<T extends QueueEntity<ID>, ID> implements QueueRep
         return queueRepo.findByMessageId(messageId);
     }
 
+    //Due messages in the order they became due, a range scan on {table}_pending_next_attempt_idx that stops at batchSize
     @Override
     public List<T> lockNextMessages(String tableName, int batchSize, int maxRetries) {
         validateTableNameForSQLInjection(tableName);
@@ -40,61 +60,312 @@ public class QueuePostgreRepo<T extends QueueEntity<ID>, ID> implements QueueRep
         var sql = "SELECT * FROM " + tableName +
                 " WHERE processed_at IS NULL " +
                 "AND non_timeout_retries <= :maxRetries " +
-                "ORDER BY internal_id ASC " +
+                "AND (locked_until IS NULL OR locked_until < :now) " +
+                "AND next_attempt_at <= :now " +
+                "ORDER BY next_attempt_at ASC, internal_id ASC " +
                 "FETCH FIRST :batchSize ROWS ONLY " +
                 "FOR NO KEY UPDATE SKIP LOCKED";
 
-        return entityManager
+        var meters = metrics.of(tableName);
+        var now = LocalDateTime.now();
+        List<T> messages = meters.claim().record(() -> entityManager
                 .createNativeQuery(sql, entityClass)
                 .setParameter("batchSize", batchSize)
                 .setParameter("maxRetries", maxRetries)
-                .getResultList();
+                .setParameter("now", now)
+                .getResultList());
+
+        //The locks stay with the transaction, but changes in memory are never flushed, outcomes are written with ackAll/nackAll
+        messages.forEach(entityManager::detach);
+        recordWait(tableName, messages, now);
+        var depth = stats.of(tableName);
+        afterCommit(() -> depth.claimed(messages.size()));
+        return messages;
     }
 
+    //Locks are only held during this statement, the lease keeps other workers away until it expires
     @Override
-    public List<T> lockPoisonedMessages(String tableName) {
+    public List<T> claimNextMessages(String tableName, int batchSize, int maxRetries, String lockedBy, Duration leaseDuration) {
         validateTableNameForSQLInjection(tableName);
 
-        var sql = "SELECT * FROM " + tableName +
-                " WHERE processed_at IS NULL " +
-                " AND arrived_at < :oneHourAgo " +
-                " ORDER BY internal_id ASC " +
-                " FOR NO KEY UPDATE SKIP LOCKED ";
+        var now = LocalDateTime.now();
+        var sql = "UPDATE " + tableName +
+                " SET locked_until = :lockedUntil, locked_by = :lockedBy " +
+                " WHERE internal_id IN (" +
+                "   SELECT internal_id FROM " + tableName +
+                "   WHERE processed_at IS NULL " +
+                "   AND non_timeout_retries <= :maxRetries " +
+                "   AND (locked_until IS NULL OR locked_until < :now) " +
+                "   AND next_attempt_at <= :now " +
+                "   ORDER BY next_attempt_at ASC, internal_id ASC " +
+                "   FETCH FIRST :batchSize ROWS ONLY " +
+                "   FOR NO KEY UPDATE SKIP LOCKED) " +
+                " RETURNING *";
 
-        return entityManager
+        List<T> messages = metrics.of(tableName).claim().record(() -> entityManager
                 .createNativeQuery(sql, entityClass)
-                .setParameter("oneHourAgo", LocalDateTime.now().minusHours(1))
-                .getResultList();
+                .setParameter("lockedUntil", now.plus(leaseDuration))
+                .setParameter("lockedBy", lockedBy)
+                .setParameter("maxRetries", maxRetries)
+                .setParameter("now", now)
+                .setParameter("batchSize", batchSize)
+                .getResultList());
+
+        recordWait(tableName, messages, now);
+        var depth = stats.of(tableName);
+        afterCommit(() -> depth.claimed(messages.size()));
+        return messages;
+    }
+
+    private void recordWait(String tableName, List<T> messages, LocalDateTime claimedAt) {
+        var timeInQueue = metrics.of(tableName).timeInQueue();
+        messages.forEach(message -> timeInQueue.record(Duration.between(message.getArrivedAt(), claimedAt)));
     }
 
     @Override
-    public int deleteOldMessages(String tableName) {
+    public List<ID> ackAll(String tableName, List<ID> ids, LocalDateTime processedAt, String lockedBy) {
         validateTableNameForSQLInjection(tableName);
+        if (ids.isEmpty()) {
+            return List.of();
+        }
+
+        var sql = "UPDATE " + tableName +
+                " SET processed_at = ?, locked_until = NULL, locked_by = NULL " +
+                " WHERE internal_id = ANY(?)" + (lockedBy != null ? " AND locked_by = ?" : "") +
+                " RETURNING internal_id, arrived_at";
+
+        //End to end latency comes with the ack, no extra query
+        var meters = metrics.of(tableName);
+        Class<?> idClass = idClass();
+        ResultSetReader<ID> latencyReader = resultSet -> {
+            meters.latency().record(Duration.between(resultSet.getTimestamp(2).toLocalDateTime(), processedAt));
+            return (ID) resultSet.getObject(1, idClass);
+        };
+
+        var acked = meters.ack().record(() -> lockedBy != null
+                ? query(sql, latencyReader, Timestamp.valueOf(processedAt), ids, lockedBy)
+                : query(sql, latencyReader, Timestamp.valueOf(processedAt), ids));
+
+        var depth = stats.of(tableName);
+        afterCommit(() -> depth.acked(acked.size()));
+        return acked;
+    }
 
-        // 1. Select IDs to be deleted
-        String selectSql = "SELECT internal_id FROM " + tableName +
-                " WHERE processed_at IS NOT NULL " +
-                " AND arrived_at < :yesterday";
-        List<?> ids = entityManager.createNativeQuery(selectSql)
-                .setParameter("yesterday", LocalDateTime.now().toLocalDate().atStartOfDay())
-                .getResultList();
-
-        if (!ids.isEmpty()) {
-            log.debug("Deleting {} old messages from {}. IDs: {}", ids.size(), tableName, ids);
-        } else {
-            log.debug("No old messages to delete from {}", tableName);
+    @Override
+    public List<ID> nackAll(String tableName, List<ID> ids, String lockedBy, RetryBackoff backoff) {
+        validateTableNameForSQLInjection(tableName);
+        if (ids.isEmpty()) {
+            return List.of();
         }
 
-        // 2. Delete by IDs
-        String deleteSql = "DELETE FROM " + tableName + " WHERE internal_id IN :ids";
-        int deleted = 0;
-        if (!ids.isEmpty()) {
-            deleted = entityManager.createNativeQuery(deleteSql)
-                    .setParameter("ids", ids)
-                    .executeUpdate();
+        //non_timeout_retries on the right side is the value before this failure, the first retry waits the initial delay
+        var sql = "UPDATE " + tableName +
+                " SET non_timeout_retries = non_timeout_retries + 1, locked_until = NULL, locked_by = NULL, " +
+                " next_attempt_at = ?::timestamp + make_interval(secs => least(?, ? * power(2, non_timeout_retries)) * (1 - ? * random())) " +
+                " WHERE internal_id = ANY(?)" + (lockedBy != null ? " AND locked_by = ?" : "") +
+                " RETURNING internal_id";
+
+        var now = Timestamp.valueOf(LocalDateTime.now());
+        var meters = metrics.of(tableName);
+        var retried = meters.ack().record(() -> lockedBy != null
+                ? queryIds(sql, now, backoff.maxSeconds(), backoff.initialSeconds(), backoff.jitter(), ids, lockedBy)
+                : queryIds(sql, now, backoff.maxSeconds(), backoff.initialSeconds(), backoff.jitter(), ids));
+
+        meters.retries().increment(retried.size());
+        var depth = stats.of(tableName);
+        afterCommit(() -> depth.released(retried.size()));
+        return retried;
+    }
+
+    @Override
+    public List<QueueLease<ID>> ackAllLeased(String tableName, List<QueueLease<ID>> leases, LocalDateTime processedAt) {
+        validateTableNameForSQLInjection(tableName);
+        if (leases.isEmpty()) {
+            return List.of();
         }
 
-        log.debug("Deleted {} old messages from {}. IDs: {}", deleted, tableName, ids);
+        Class<?> idClass = idClass();
+        var sql = "UPDATE " + tableName + " t" +
+                " SET processed_at = ?, locked_until = NULL, locked_by = NULL " +
+                " FROM unnest(?::" + sqlArrayType(idClass) + "[], ?::text[]) AS lease(internal_id, locked_by)" +
+                " WHERE t.internal_id = lease.internal_id AND t.locked_by = lease.locked_by" +
+                " RETURNING t.internal_id, t.arrived_at, lease.locked_by";
+
+        var meters = metrics.of(tableName);
+        ResultSetReader<QueueLease<ID>> latencyReader = resultSet -> {
+            meters.latency().record(Duration.between(resultSet.getTimestamp(2).toLocalDateTime(), processedAt));
+            return new QueueLease<>((ID) resultSet.getObject(1, idClass), resultSet.getString(3));
+        };
+
+        var acked = meters.ack().record(() ->
+                query(sql, latencyReader, Timestamp.valueOf(processedAt), leaseIds(leases), leaseOwners(leases)));
+
+        var depth = stats.of(tableName);
+        afterCommit(() -> depth.acked(acked.size()));
+        return acked;
+    }
+
+    @Override
+    public List<QueueLease<ID>> nackAllLeased(String tableName, List<QueueLease<ID>> leases, RetryBackoff backoff) {
+        validateTableNameForSQLInjection(tableName);
+        if (leases.isEmpty()) {
+            return List.of();
+        }
+
+        Class<?> idClass = idClass();
+        var sql = "UPDATE " + tableName + " t" +
+                " SET non_timeout_retries = t.non_timeout_retries + 1, locked_until = NULL, locked_by = NULL, " +
+                " next_attempt_at = ?::timestamp + make_interval(secs => least(?, ? * power(2, t.non_timeout_retries)) * (1 - ? * random())) " +
+                " FROM unnest(?::" + sqlArrayType(idClass) + "[], ?::text[]) AS lease(internal_id, locked_by)" +
+                " WHERE t.internal_id = lease.internal_id AND t.locked_by = lease.locked_by" +
+                " RETURNING t.internal_id, lease.locked_by";
+
+        var now = Timestamp.valueOf(LocalDateTime.now());
+        var meters = metrics.of(tableName);
+        ResultSetReader<QueueLease<ID>> leaseReader = resultSet -> new QueueLease<>((ID) resultSet.getObject(1, idClass), resultSet.getString(2));
+        var retried = meters.ack().record(() ->
+                query(sql, leaseReader, now, backoff.maxSeconds(), backoff.initialSeconds(), backoff.jitter(), leaseIds(leases), leaseOwners(leases)));
+
+        meters.retries().increment(retried.size());
+        var depth = stats.of(tableName);
+        afterCommit(() -> depth.released(retried.size()));
+        return retried;
+    }
+
+    private List<ID> leaseIds(List<QueueLease<ID>> leases) {
+        return leases.stream().map(QueueLease::internalId).toList();
+    }
+
+    private String[] leaseOwners(List<QueueLease<ID>> leases) {
+        return leases.stream().map(QueueLease::lockedBy).toArray(String[]::new);
+    }
+
+    @Override
+    public List<ID> moveToDeadLetterQueue(String tableName, List<ID> ids, String lockedBy) {
+        validateTableNameForSQLInjection(tableName);
+        if (ids.isEmpty()) {
+            return List.of();
+        }
+
+        var sql = moveToDeadLetterQueueSql(tableName, "SELECT internal_id FROM " + tableName + " WHERE internal_id = ANY(?)", lockedBy != null);
+        var moved = metrics.of(tableName).deadLetter().record(() -> lockedBy != null
+                ? queryIds(sql, ids, lockedBy, tableName)
+                : queryIds(sql, ids, tableName));
+
+        var depth = stats.of(tableName);
+        afterCommit(() -> depth.deadLettered(moved.size(), true));
+        return moved;
+    }
+
+    @Override
+    public List<QueueKey<ID>> movePoisonedToDeadLetterQueue(String tableName, LocalDateTime arrivedBefore, QueueKey<ID> after, int limit) {
+        validateTableNameForSQLInjection(tableName);
+
+        //Walks the pending arrived_at index, rows skipped (leased or locked) are never read again in the same pass
+        var poisoned = "SELECT internal_id FROM " + tableName +
+                " WHERE processed_at IS NULL " +
+                " AND arrived_at < ? " +
+                (after != null ? " AND (arrived_at, internal_id) > (?, ?) " : "") +
+                " AND (locked_until IS NULL OR locked_until < ?) " +
+                " ORDER BY arrived_at ASC, internal_id ASC " +
+                " LIMIT ? " +
+                " FOR UPDATE SKIP LOCKED";
+
+        var sql = moveToDeadLetterQueueSql(tableName, poisoned, false) + " ORDER BY arrived_at ASC, internal_id ASC";
+        var now = Timestamp.valueOf(LocalDateTime.now());
+        Class<?> idClass = idClass();
+        ResultSetReader<QueueKey<ID>> keyReader = resultSet -> new QueueKey<>(resultSet.getTimestamp(2).toLocalDateTime(), (ID) resultSet.getObject(1, idClass));
+
+        var meters = metrics.of(tableName);
+        var moved = meters.deadLetter().record(() -> after != null
+                ? query(sql, keyReader, Timestamp.valueOf(arrivedBefore), Timestamp.valueOf(after.arrivedAt()), after.internalId(), now, limit, tableName)
+                : query(sql, keyReader, Timestamp.valueOf(arrivedBefore), now, limit, tableName));
+
+        meters.poisoned().increment(moved.size());
+        var depth = stats.of(tableName);
+        afterCommit(() -> depth.deadLettered(moved.size(), false));
+        return moved;
+    }
+
+    //One statement whatever the number of messages: the DELETE feeds the INSERT, both commit or none does.
+    //The lease is checked on the DELETE itself, so it is evaluated again on a row another claim took meanwhile
+    private String moveToDeadLetterQueueSql(String tableName, String selectIds, boolean leased) {
+        return "WITH moved AS (" +
+                "   DELETE FROM " + tableName + " WHERE internal_id IN (" + selectIds + ")" + (leased ? " AND locked_by = ?" : "") +
+                "   RETURNING internal_id, message_id, data, arrived_at" +
+                " ), dead AS (" +
+                "   INSERT INTO " + DeadLetterQueue.TABLE_NAME + " (message_id, data, arrived_at, from_queue)" +
+                "   SELECT message_id, data, arrived_at, ? FROM moved" +
+                "   ON CONFLICT (message_id) DO UPDATE SET data = EXCLUDED.data, arrived_at = EXCLUDED.arrived_at, from_queue = EXCLUDED.from_queue" +
+                " )" +
+                " SELECT internal_id, arrived_at FROM moved";
+    }
+
+    private List<ID> queryIds(String sql, Object... parameters) {
+        Class<?> idClass = idClass();
+        return query(sql, resultSet -> (ID) resultSet.getObject(1, idClass), parameters);
+    }
+
+    //Lists (of ids) and String arrays go as one array parameter, same statement whatever the batch size and no bind parameter limit
+    private <R> List<R> query(String sql, ResultSetReader<R> reader, Object... parameters) {
+        Class<?> idClass = idClass();
+        return entityManager.unwrap(Session.class).doReturningWork(connection -> {
+            try (PreparedStatement statement = connection.prepareStatement(sql)) {
+                for (int i = 0; i < parameters.length; i++) {
+                    if (parameters[i] instanceof List<?> list) {
+                        statement.setArray(i + 1, connection.createArrayOf(sqlArrayType(idClass), list.toArray()));
+                    } else if (parameters[i] instanceof String[] texts) {
+                        statement.setArray(i + 1, connection.createArrayOf("text", texts));
+                    } else {
+                        statement.setObject(i + 1, parameters[i]);
+                    }
+                }
+
+                List<R> rows = new ArrayList<>();
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    while (resultSet.next()) {
+                        rows.add(reader.read(resultSet));
+                    }
+                }
+                return rows;
+            }
+        });
+    }
+
+    private interface ResultSetReader<R> {
+        R read(ResultSet resultSet) throws SQLException;
+    }
+
+    private Class<?> idClass() {
+        return entityManager.getMetamodel().entity(entityClass).getIdType().getJavaType();
+    }
+
+    private String sqlArrayType(Class<?> idClass) {
+        if (idClass == Long.class) return "int8";
+        if (idClass == Integer.class) return "int4";
+        if (idClass == UUID.class) return "uuid";
+        throw new IllegalStateException("Unsupported queue id type " + idClass);
+    }
+
+    @Override
+    public int deleteOldMessages(String tableName, LocalDateTime olderThan, int limit) {
+        validateTableNameForSQLInjection(tableName);
+
+        String sql = "DELETE FROM " + tableName +
+                " WHERE internal_id IN (" +
+                "   SELECT internal_id FROM " + tableName +
+                "   WHERE processed_at IS NOT NULL " +
+                "   AND arrived_at < :olderThan " +
+                "   LIMIT :limit " +
+                "   FOR UPDATE SKIP LOCKED)";
+
+        var deleted = entityManager.createNativeQuery(sql)
+                .setParameter("olderThan", olderThan)
+                .setParameter("limit", limit)
+                .executeUpdate();
+
+        var depth = stats.of(tableName);
+        afterCommit(() -> depth.purged(deleted));
         return deleted;
     }
 
@@ -104,35 +375,121 @@ public class QueuePostgreRepo<T extends QueueEntity<ID>, ID> implements QueueRep
         }
     }
 
-    //TODO NOT WORKING
+    //Leased rows, plus rows locked (FOR UPDATE) or being acked by a transaction still running
+    //Row locks don't show up in pg_locks, the locker is in xmax, compared to the xids of the running transactions
     @Override
     public long countLockedRows(String tableName) {
         validateTableNameForSQLInjection(tableName);
 
-        String sql = """
-                    SELECT count(*)
-                    FROM pg_locks l
-                    JOIN pg_class t ON l.relation = t.oid
-                    WHERE t.relname = :tableName
-                      AND l.mode = 'RowExclusiveLock'
-                      AND l.granted
-                """;
+        String sql = "SELECT count(*) FROM " + tableName +
+                " WHERE processed_at IS NULL " +
+                " AND (locked_until > :now " +
+                "   OR xmax::text IN (SELECT backend_xid::text FROM pg_stat_activity WHERE backend_xid IS NOT NULL))";
 
         Object result = entityManager.createNativeQuery(sql)
-                .setParameter("tableName", tableName)
+                .setParameter("now", LocalDateTime.now())
                 .getSingleResult();
 
         return ((Number) result).longValue();
     }
 
+    //Served by the partial index on arrived_at of the pending messages
+    @Override
+    public Optional<LocalDateTime> findOldestPendingArrivedAt(String tableName) {
+        validateTableNameForSQLInjection(tableName);
+
+        var sql = "SELECT min(arrived_at) FROM " + tableName + " WHERE processed_at IS NULL";
+
+        Object result = entityManager.createNativeQuery(sql).getSingleResult();
+
+        //Depending on the dialect settings it comes as a Timestamp or already converted
+        return Optional.ofNullable(result).map(value -> value instanceof Timestamp timestamp ? timestamp.toLocalDateTime() : (LocalDateTime) value);
+    }
+
     @Override
     public ID create(final T entity) {
-        try {
-            T savedEntity = queueRepo.save(entity);
-            return savedEntity.getInternalId();
-        } catch (DataIntegrityViolationException e) {
-                throw new MessageDuplicatedException(entity.getMessageId());
+        return createIfAbsent(entity).orElseThrow(() -> new MessageDuplicatedException(entity.getMessageId()));
+    }
+
+    @Override
+    public Optional<ID> createIfAbsent(final T entity) {
+        return Optional.ofNullable(createAll(List.of(entity)).get(entity.getMessageId()));
+    }
+
+    //One round trip whatever the batch size, the arrays are expanded by unnest on the DB side
+    //Duplicates are a return value, ON CONFLICT DO NOTHING doesn't abort the statement nor poison the transaction
+    @Override
+    public Map<UUID, ID> createAll(final List<T> allEntities) {
+        var tableName = entityClass.getAnnotation(Table.class).name();
+        validateTableNameForSQLInjection(tableName);
+
+        var meters = metrics.of(tableName);
+        var created = meters.enqueue().record(() -> insertAll(tableName, allEntities));
+        meters.duplicates().increment(allEntities.size() - created.size());
+        var depth = stats.of(tableName);
+        afterCommit(() -> depth.enqueued(created.size()));
+        return created;
+    }
+
+    private Map<UUID, ID> insertAll(String tableName, List<T> allEntities) {
+        var entities = allEntities.stream().filter(e -> !recentMessageIds.contains(e.getMessageId())).toList();
+        if (entities.isEmpty()) {
+            return Map.of();
+        }
+
+        var sql = "INSERT INTO " + tableName + " (message_id, data, arrived_at, non_timeout_retries, next_attempt_at) " +
+                " SELECT message_id, data::jsonb, arrived_at, non_timeout_retries, arrived_at " +
+                " FROM unnest(?::uuid[], ?::text[], ?::timestamp[], ?::int[]) AS batch(message_id, data, arrived_at, non_timeout_retries) " +
+                " WHERE NOT EXISTS (SELECT 1 FROM " + tableName + " q WHERE q.message_id = batch.message_id) " + //Partitioned tables are only unique per partition
+                " ON CONFLICT DO NOTHING " +
+                " RETURNING internal_id, message_id";
+
+        Class<?> idClass = idClass();
+
+        return entityManager.unwrap(Session.class).doReturningWork(connection -> {
+            try (PreparedStatement statement = connection.prepareStatement(sql)) {
+                statement.setArray(1, connection.createArrayOf("uuid", entities.stream().map(QueueEntity::getMessageId).toArray()));
+                statement.setArray(2, connection.createArrayOf("text", entities.stream().map(QueueEntity::getData).toArray()));
+                statement.setArray(3, connection.createArrayOf("timestamp", entities.stream().map(e -> Timestamp.valueOf(e.getArrivedAt())).toArray()));
+                statement.setArray(4, connection.createArrayOf("int4", entities.stream().map(QueueEntity::getNonTimeoutRetries).toArray()));
+
+                Map<UUID, ID> created = new HashMap<>();
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    while (resultSet.next()) {
+                        created.put(resultSet.getObject("message_id", UUID.class), (ID) resultSet.getObject("internal_id", idClass));
+                    }
+                }
+
+                log.debug("Created {} of {} messages in {}", created.size(), allEntities.size(), tableName);
+                rememberAfterCommit(entities.stream().map(QueueEntity::getMessageId).toList());
+                return created;
+            }
+        });
+    }
+
+    //Queue stats only count what really happened
+    private void afterCommit(Runnable action) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            action.run();
+            return;
         }
+
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                action.run();
+            }
+        });
+    }
+
+    //Only once they are really on the table, a rolled back insert must not be taken as a duplicate later
+    private void rememberAfterCommit(List<UUID> messageIds) {
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                recentMessageIds.addAll(messageIds);
+            }
+        });
     }
 
     @Override
@@ -1,6 +1,11 @@
 package jon.db.queue.shared.queue.abstract_queue;
 
+import jon.db.queue.shared.queue.RetryBackoff;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.UUID;
 
@@ -10,14 +15,43 @@ public interface QueueRepo<T extends QueueEntity<ID>, ID> {
 
     List<T> lockNextMessages(String tableName, int batchSize, int maxRetries);
 
-    List<T> lockPoisonedMessages(String tableName);
+    List<T> claimNextMessages(String tableName, int batchSize, int maxRetries, String lockedBy, Duration leaseDuration);
+
+    //Both return the ids really updated, lockedBy null means the rows are locked by the current transaction instead of leased
+    List<ID> ackAll(String tableName, List<ID> ids, LocalDateTime processedAt, String lockedBy);
+
+    //Retried messages are not claimable again until their backoff is over
+    List<ID> nackAll(String tableName, List<ID> ids, String lockedBy, RetryBackoff backoff);
+
+    //Leases of any number of claims in one statement, each row only if its own claim still holds it. Both return the leases really updated
+    List<QueueLease<ID>> ackAllLeased(String tableName, List<QueueLease<ID>> leases, LocalDateTime processedAt);
+
+    List<QueueLease<ID>> nackAllLeased(String tableName, List<QueueLease<ID>> leases, RetryBackoff backoff);
 
-    int deleteOldMessages(String tableName);
+    //Set-based moves (the DELETE ... RETURNING feeds the INSERT into the DLQ), both return the ids really moved.
+    //Like the acks, lockedBy null means the rows are locked by the current transaction, otherwise only rows still leased by it move
+    List<ID> moveToDeadLetterQueue(String tableName, List<ID> ids, String lockedBy);
 
+    //One keyset page in arrival order, after is the last key of the previous page (null for the first one)
+    List<QueueKey<ID>> movePoisonedToDeadLetterQueue(String tableName, LocalDateTime arrivedBefore, QueueKey<ID> after, int limit);
+
+    //Processed messages only, at most limit rows per call
+    int deleteOldMessages(String tableName, LocalDateTime olderThan, int limit);
+
+    //Messages in flight right now: leased, or row locked by a running transaction
     long countLockedRows(String tableName);
 
+    //Empty when there is nothing pending
+    Optional<LocalDateTime> findOldestPendingArrivedAt(String tableName);
+
     ID create(T entity);
 
+    //Empty when the message is already on the queue
+    Optional<ID> createIfAbsent(T entity);
+
+    //Duplicated messages are left out of the returned map instead of failing the whole batch
+    Map<UUID, ID> createAll(List<T> entities);
+
     void update(T entity);
 
     void delete(T entity);
@@ -0,0 +1,55 @@
+package jon.db.queue.shared.queue.ack;
+
+import jon.db.queue.shared.queue.RetryBackoff;
+import jon.db.queue.shared.queue.abstract_queue.QueueRepo;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+//Outcomes of a batch, written with one UPDATE for the processed ones, another one for the failed ones and one move for the exhausted ones
+public class PendingAcks<ID> {
+    private final RetryBackoff backoff;
+    private final List<ID> processed = new ArrayList<>();
+    private final List<ID> failed = new ArrayList<>();
+    private final List<ID> deadLettered = new ArrayList<>();
+
+    public PendingAcks(RetryBackoff backoff) {
+        this.backoff = backoff;
+    }
+
+    public void processed(ID id) {
+        processed.add(id);
+    }
+
+    public void failed(ID id) {
+        failed.add(id);
+    }
+
+    //Out of retries, moved to the DLQ with the rest of the batch instead of from inside the savepoint of its failure
+    public void deadLettered(ID id) {
+        deadLettered.add(id);
+    }
+
+    /**
+     * @param lockedBy owner of the lease, null when the rows are locked by the current transaction
+     * @return how many of them couldn't be acknowledged because their lease was lost
+     */
+    public int flush(QueueRepo<?, ID> repo, String tableName, String lockedBy) {
+        int lost = 0;
+        if (!processed.isEmpty()) {
+            lost += processed.size() - repo.ackAll(tableName, processed, LocalDateTime.now(), lockedBy).size();
+        }
+        if (!failed.isEmpty()) {
+            lost += failed.size() - repo.nackAll(tableName, failed, lockedBy, backoff).size();
+        }
+        if (!deadLettered.isEmpty()) {
+            lost += deadLettered.size() - repo.moveToDeadLetterQueue(tableName, deadLettered, lockedBy).size();
+        }
+
+        processed.clear();
+        failed.clear();
+        deadLettered.clear();
+        return lost;
+    }
+}
@@ -0,0 +1,57 @@
+package jon.db.queue.shared.queue.ack;
+
+import jon.db.queue.shared.queue.GroupCommitBuffer;
+import jon.db.queue.shared.queue.RetryBackoff;
+import jon.db.queue.shared.queue.abstract_queue.QueueLease;
+import jon.db.queue.shared.queue.abstract_queue.QueueRepo;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+//For messages that finish on their own (i.e. one virtual thread each), acks arriving within a short window share one UPDATE, whatever claim they come from
+public class WindowedAcks<ID> implements AutoCloseable {
+    private final QueueRepo<?, ID> repo;
+    private final String tableName;
+    private final RetryBackoff backoff;
+    private final GroupCommitBuffer<Ack<ID>, Boolean> buffer;
+
+    public WindowedAcks(QueueRepo<?, ID> repo, String tableName, RetryBackoff backoff, Duration window, int maxBatchSize) {
+        this.repo = repo;
+        this.tableName = tableName;
+        this.backoff = backoff;
+        this.buffer = new GroupCommitBuffer<>(tableName + "-acks", window, maxBatchSize, this::flush);
+    }
+
+    //False when the lease was lost before the ack
+    public boolean ack(ID id, String lockedBy) {
+        return buffer.submit(new Ack<>(id, lockedBy, true)).join();
+    }
+
+    public boolean nack(ID id, String lockedBy) {
+        return buffer.submit(new Ack<>(id, lockedBy, false)).join();
+    }
+
+    //Every claim token goes in the same statement, a window costs one UPDATE for the acks and one for the nacks
+    private List<Boolean> flush(List<Ack<ID>> acks) {
+        List<QueueLease<ID>> processed = new ArrayList<>();
+        List<QueueLease<ID>> failed = new ArrayList<>();
+        acks.forEach(ack -> (ack.processed() ? processed : failed).add(new QueueLease<>(ack.id(), ack.lockedBy())));
+
+        Set<Ack<ID>> acknowledged = new HashSet<>();
+        repo.ackAllLeased(tableName, processed, LocalDateTime.now()).forEach(lease -> acknowledged.add(new Ack<>(lease.internalId(), lease.lockedBy(), true)));
+        repo.nackAllLeased(tableName, failed, backoff).forEach(lease -> acknowledged.add(new Ack<>(lease.internalId(), lease.lockedBy(), false)));
+
+        return acks.stream().map(acknowledged::contains).toList();
+    }
+
+    @Override
+    public void close() {
+        buffer.close();
+    }
+
+    private record Ack<ID>(ID id, String lockedBy, boolean processed) { }
+}
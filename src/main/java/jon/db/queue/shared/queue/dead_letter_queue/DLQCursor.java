@@ -0,0 +1,30 @@
+package jon.db.queue.shared.queue.dead_letter_queue;
+
+import java.time.LocalDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.UUID;
+
+//Keyset position in the DLQ, sent to clients as an opaque token: <arrivedAt>_<messageId>
+public record DLQCursor(LocalDateTime arrivedAt, UUID messageId) {
+    private static final String SEPARATOR = "_";
+
+    public static DLQCursor of(DeadLetterQueue deadLetterQueue) {
+        return new DLQCursor(deadLetterQueue.getArrivedAt(), deadLetterQueue.getMessageId());
+    }
+
+    public static DLQCursor parse(String token) {
+        var parts = token.split(SEPARATOR);
+        if (parts.length != 2) {
+            throw new IllegalArgumentException("Invalid DLQ cursor: " + token);
+        }
+        try {
+            return new DLQCursor(LocalDateTime.parse(parts[0]), UUID.fromString(parts[1]));
+        } catch (DateTimeParseException | IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid DLQ cursor: " + token, e);
+        }
+    }
+
+    public String token() {
+        return arrivedAt + SEPARATOR + messageId;
+    }
+}
@@ -0,0 +1,195 @@
+package jon.db.queue.shared.queue.dead_letter_queue;
+
+import jon.db.queue.shared.queue.stats.QueueStats;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.util.Assert;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bulk redrive of DLQ messages back to the queue they came from, i.e. to replay them after a downstream outage.
+ * Runs in the background in set-based chunks (each one its own transaction), paced to a rate so consumers aren't flooded.
+ * Jobs live in the memory of the node that started them, progress and cancel have to be asked to that node.
+ */
+@Service
+@Slf4j
+@RequiredArgsConstructor
+public class DLQRedrive {
+    private static final LocalDateTime BEGINNING = LocalDateTime.of(1970, 1, 1, 0, 0);
+    private static final Duration KEEP_FINISHED = Duration.ofHours(1);
+
+    private final DLQRepo repo;
+    private final QueueStats stats;
+
+    private final Map<UUID, RedriveJob> jobs = new ConcurrentHashMap<>();
+
+    @Value("${queue.schema.tables:}")
+    private List<String> queueTables;
+
+    @Value("${queue.dlq.redrive.chunk-size:500}")
+    private int chunkSize;
+
+    @Value("${queue.dlq.redrive.max-rate:500}") //Messages per second
+    private int maxRate;
+
+    public synchronized RedriveProgress start(final String fromQueue, final LocalDateTime arrivedFrom, final LocalDateTime arrivedTo, final Integer rate) {
+        Assert.isTrue(queueTables.contains(fromQueue), "Unknown queue: " + fromQueue);
+        Assert.isTrue(rate == null || (rate > 0 && rate <= maxRate), "Rate must be between 1 and " + maxRate);
+        Assert.state(jobs.values().stream().noneMatch(job -> job.fromQueue.equals(fromQueue) && job.status == RedriveStatus.RUNNING),
+                "There is already a redrive running for " + fromQueue);
+
+        forgetFinishedJobs();
+
+        var job = new RedriveJob(UUID.randomUUID(), fromQueue,
+                arrivedFrom != null ? arrivedFrom : BEGINNING,
+                arrivedTo != null ? arrivedTo : LocalDateTime.now(),
+                rate != null ? rate : maxRate);
+        jobs.put(job.id, job);
+        job.thread = Thread.ofVirtual().name("dlq-redrive-" + job.id).start(() -> run(job));
+
+        log.info("Started redrive {} of DLQ messages from {} arrived between {} and {} at {} msg/s", job.id, fromQueue, job.arrivedFrom, job.arrivedTo, job.rate);
+        return job.progress();
+    }
+
+    public Optional<RedriveProgress> progress(final UUID id) {
+        return Optional.ofNullable(jobs.get(id)).map(RedriveJob::progress);
+    }
+
+    public List<RedriveProgress> progress() {
+        return jobs.values().stream().map(RedriveJob::progress).sorted(Comparator.comparing(RedriveProgress::startedAt)).toList();
+    }
+
+    //Chunks already moved stay in the queue, the one in progress finishes and the job stops before the next
+    public Optional<RedriveProgress> cancel(final UUID id) {
+        var job = jobs.get(id);
+        if (job == null) {
+            return Optional.empty();
+        }
+
+        job.cancelRequested = true;
+        job.wakeUpIfPacing();
+        return Optional.of(job.progress());
+    }
+
+    private void run(RedriveJob job) {
+        var start = System.nanoTime();
+        var chunk = Math.min(chunkSize, job.rate); //A chunk is never more than a second worth of messages
+
+        try {
+            DLQRepo.RedriveChunk redriven;
+            do {
+                if (job.cancelRequested) {
+                    job.finish(RedriveStatus.CANCELLED, null);
+                    log.info("Redrive {} cancelled after {} messages", job.id, job.moved.get());
+                    return;
+                }
+
+                redriven = repo.redrive(job.fromQueue, job.arrivedFrom, job.arrivedTo, chunk);
+                var moved = redriven.moved();
+                var skipped = redriven.skipped();
+                job.moved.addAndGet(moved);
+                job.skipped.addAndGet(skipped);
+                stats.tracked(job.fromQueue).ifPresent(depth -> depth.redriven(moved, skipped));
+                log.debug("Redrive {} moved {} messages back to {} ({} already there), {} so far", job.id, moved, job.fromQueue, skipped, job.moved.get());
+
+                pace(job, start);
+            } while (redriven.taken() == chunk);
+
+            job.finish(RedriveStatus.COMPLETED, null);
+            log.info("Redrive {} completed, {} messages moved back to {}, {} dropped from the DLQ as already there", job.id, job.moved.get(), job.fromQueue, job.skipped.get());
+        } catch (Exception e) {
+            job.finish(RedriveStatus.FAILED, e.getMessage());
+            log.error("Redrive {} failed after {} messages: {}", job.id, job.moved.get(), e.getMessage());
+        }
+    }
+
+    //Sleeps until the messages moved so far fit in the rate
+    private void pace(RedriveJob job, long start) {
+        var expectedNanos = job.moved.get() * 1_000_000_000L / job.rate;
+        var aheadNanos = expectedNanos - (System.nanoTime() - start);
+        if (aheadNanos <= 0) {
+            return;
+        }
+
+        synchronized (job) {
+            if (job.cancelRequested) {
+                return;
+            }
+            job.pacing = true;
+        }
+        try {
+            Thread.sleep(Duration.ofNanos(aheadNanos));
+        } catch (InterruptedException e) {
+            job.cancelRequested = true;
+        } finally {
+            synchronized (job) {
+                job.pacing = false;
+                Thread.interrupted(); //Never carried into the next chunk's JDBC call
+            }
+        }
+    }
+
+    private void forgetFinishedJobs() {
+        var threshold = LocalDateTime.now().minus(KEEP_FINISHED);
+        jobs.values().removeIf(job -> job.finishedAt != null && job.finishedAt.isBefore(threshold));
+    }
+
+    public enum RedriveStatus { RUNNING, COMPLETED, CANCELLED, FAILED }
+
+    public record RedriveProgress(UUID id, String fromQueue, LocalDateTime arrivedFrom, LocalDateTime arrivedTo, int rate,
+                                  RedriveStatus status, long moved, long skipped, LocalDateTime startedAt, LocalDateTime finishedAt, String error) { }
+
+    private static final class RedriveJob {
+        private final UUID id;
+        private final String fromQueue;
+        private final LocalDateTime arrivedFrom;
+        private final LocalDateTime arrivedTo;
+        private final int rate;
+        private final LocalDateTime startedAt = LocalDateTime.now();
+        private final AtomicLong moved = new AtomicLong();
+        private final AtomicLong skipped = new AtomicLong(); //Already back in the queue, only dropped from the DLQ
+
+        private volatile RedriveStatus status = RedriveStatus.RUNNING;
+        private volatile LocalDateTime finishedAt;
+        private volatile String error;
+        private volatile boolean cancelRequested;
+        private volatile Thread thread;
+        private boolean pacing; //Guarded by the job
+
+        private RedriveJob(UUID id, String fromQueue, LocalDateTime arrivedFrom, LocalDateTime arrivedTo, int rate) {
+            this.id = id;
+            this.fromQueue = fromQueue;
+            this.arrivedFrom = arrivedFrom;
+            this.arrivedTo = arrivedTo;
+            this.rate = rate;
+        }
+
+        private void finish(RedriveStatus status, String error) {
+            this.error = error;
+            this.finishedAt = LocalDateTime.now();
+            this.status = status;
+        }
+
+        //Only a sleeping job is interrupted: an interrupt during JDBC socket I/O closes the pooled connection
+        private synchronized void wakeUpIfPacing() {
+            if (pacing && thread != null) {
+                thread.interrupt();
+            }
+        }
+
+        private RedriveProgress progress() {
+            return new RedriveProgress(id, fromQueue, arrivedFrom, arrivedTo, rate, status, moved.get(), skipped.get(), startedAt, finishedAt, error);
+        }
+    }
+}
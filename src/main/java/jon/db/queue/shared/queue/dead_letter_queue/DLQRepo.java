@@ -1,28 +1,135 @@
 package jon.db.queue.shared.queue.dead_letter_queue;
 
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.PersistenceContext;
+import jakarta.persistence.Query;
 import lombok.RequiredArgsConstructor;
+import org.hibernate.jpa.HibernateHints;
 import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
 
+import java.time.LocalDateTime;
 import java.util.List;
 import java.util.UUID;
+import java.util.function.Consumer;
 
 public interface DLQRepo {
-    List<DeadLetterQueue> findAll(); //Could throw an OutOfMemory if it comes to a massive influx of failed messages
+    //Keyset pages in arrival order, fromQueue and after are optional
+    List<DeadLetterQueue> findPage(String fromQueue, DLQCursor after, int limit);
+
+    //Reads through a server side cursor, memory stays constant whatever the size of the DLQ
+    void forEach(String fromQueue, Consumer<DeadLetterQueue> action);
+
+    /**
+     * Set-based move of one chunk back to the queue the messages came from, as fresh messages (no retries, arrived now).
+     * Messages already back in the queue are dropped from the DLQ without being inserted again.
+     * @return how many were taken from the DLQ and how many of them were really inserted
+     */
+    RedriveChunk redrive(String fromQueue, LocalDateTime arrivedFrom, LocalDateTime arrivedTo, int limit);
 
     void create(DeadLetterQueue deadLetterQueue);
 
     void delete(UUID messageId);
+
+    record RedriveChunk(int taken, int moved) {
+        public int skipped() {
+            return taken - moved;
+        }
+    }
 }
 
 @Repository
 @RequiredArgsConstructor
 class DLQPosgreRepo implements DLQRepo {
+    private static final int STREAM_FETCH_SIZE = 500;
+
+    @PersistenceContext
+    private final EntityManager entityManager;
     private final DLQSpringJPARepo DLQSpringJPARepo;
 
     @Override
-    public List<DeadLetterQueue> findAll() {
-        return DLQSpringJPARepo.findAll();
+    @Transactional(readOnly = true)
+    public List<DeadLetterQueue> findPage(final String fromQueue, final DLQCursor after, final int limit) {
+        var query = entityManager.createNativeQuery(selectSql(fromQueue, after) + " LIMIT :limit", DeadLetterQueue.class)
+                .setParameter("limit", limit);
+        bind(query, fromQueue, after);
+        return query.getResultList();
+    }
+
+    @Override
+    @Transactional(readOnly = true) //The PG driver only uses a cursor (fetch size) inside a transaction
+    public void forEach(final String fromQueue, final Consumer<DeadLetterQueue> action) {
+        var query = entityManager.createNativeQuery(selectSql(fromQueue, null), DeadLetterQueue.class)
+                .setHint(HibernateHints.HINT_FETCH_SIZE, STREAM_FETCH_SIZE)
+                .setHint(HibernateHints.HINT_READ_ONLY, true);
+        bind(query, fromQueue, null);
+
+        try (var rows = query.getResultStream()) {
+            rows.forEach(row -> {
+                var deadLetterQueue = (DeadLetterQueue) row;
+                action.accept(deadLetterQueue);
+                entityManager.detach(deadLetterQueue); //Otherwise the persistence context keeps every row
+            });
+        }
+    }
+
+    //Every variant matches one of the DLQ indexes, (from_queue, arrived_at, message_id) or (arrived_at, message_id)
+    private String selectSql(String fromQueue, DLQCursor after) {
+        return "SELECT * FROM " + DeadLetterQueue.TABLE_NAME +
+                " WHERE true " +
+                (fromQueue != null ? " AND from_queue = :fromQueue " : "") +
+                (after != null ? " AND (arrived_at, message_id) > (:arrivedAt, :messageId) " : "") +
+                " ORDER BY arrived_at ASC, message_id ASC";
+    }
+
+    private void bind(Query query, String fromQueue, DLQCursor after) {
+        if (fromQueue != null) {
+            query.setParameter("fromQueue", fromQueue);
+        }
+        if (after != null) {
+            query.setParameter("arrivedAt", after.arrivedAt());
+            query.setParameter("messageId", after.messageId());
+        }
+    }
+
+    @Override
+    @Transactional
+    public RedriveChunk redrive(final String fromQueue, final LocalDateTime arrivedFrom, final LocalDateTime arrivedTo, final int limit) {
+        validateTableNameForSQLInjection(fromQueue);
+
+        //Messages already back in the queue are just dropped from the DLQ
+        var sql = "WITH moved AS (" +
+                "   DELETE FROM " + DeadLetterQueue.TABLE_NAME + " WHERE message_id IN (" +
+                "       SELECT message_id FROM " + DeadLetterQueue.TABLE_NAME +
+                "       WHERE from_queue = :fromQueue AND arrived_at >= :arrivedFrom AND arrived_at < :arrivedTo " +
+                "       ORDER BY arrived_at ASC, message_id ASC " +
+                "       LIMIT :limit " +
+                "       FOR UPDATE SKIP LOCKED)" +
+                "   RETURNING message_id, data" +
+                " ), redriven AS (" +
+                "   INSERT INTO " + fromQueue + " (message_id, data, arrived_at, non_timeout_retries, next_attempt_at)" +
+                "   SELECT message_id, data, :now, 0, :now FROM moved" +
+                "   WHERE NOT EXISTS (SELECT 1 FROM " + fromQueue + " q WHERE q.message_id = moved.message_id)" +
+                "   ON CONFLICT DO NOTHING" +
+                "   RETURNING message_id" +
+                " )" +
+                " SELECT (SELECT count(*) FROM moved), (SELECT count(*) FROM redriven)";
+
+        var counts = (Object[]) entityManager.createNativeQuery(sql)
+                .setParameter("fromQueue", fromQueue)
+                .setParameter("arrivedFrom", arrivedFrom)
+                .setParameter("arrivedTo", arrivedTo)
+                .setParameter("limit", limit)
+                .setParameter("now", LocalDateTime.now())
+                .getSingleResult();
+        return new RedriveChunk(((Number) counts[0]).intValue(), ((Number) counts[1]).intValue());
+    }
+
+    private void validateTableNameForSQLInjection(String tableName) {
+        if (!tableName.matches("^[a-zA-Z0-9_]+$")) {
+            throw new IllegalArgumentException("Nombre de tabla inválido: " + tableName);
+        }
     }
 
     @Override
@@ -20,6 +20,8 @@ import java.util.UUID;
 @AllArgsConstructor(access = AccessLevel.PACKAGE)
 @NoArgsConstructor(access = AccessLevel.PACKAGE)
 public class DeadLetterQueue {
+    public static final String TABLE_NAME = "dead_letter_queue";
+
     @Id
     private UUID messageId;
 
@@ -1,12 +1,16 @@
 package jon.db.queue.shared.queue.dead_letter_queue.application;
 
+import jon.db.queue.shared.queue.dead_letter_queue.DLQCursor;
 import jon.db.queue.shared.queue.dead_letter_queue.DeadLetterQueue;
 import jon.db.queue.shared.queue.dead_letter_queue.DLQRepo;
 import lombok.RequiredArgsConstructor;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.server.ResponseStatusException;
 
 import java.time.LocalDateTime;
 import java.util.List;
@@ -15,14 +19,33 @@ import java.util.List;
 @RequestMapping("/dead-letter-queue")
 @RequiredArgsConstructor
 class GetAll {
+    private static final int MAX_LIMIT = 1000;
+
     private final DLQRepo repo;
 
+    //Keyset pagination, follow "next" until it comes back null
     @GetMapping
-    public ResponseEntity<Response> getAllMessages() {
-        var messages = repo.findAll();
-        return ResponseEntity.ok(new Response(messages, "1.0.0", LocalDateTime.now().toString()));
+    public ResponseEntity<Response> getAllMessages(final @RequestParam(required = false) String fromQueue,
+                                                   final @RequestParam(required = false) String after,
+                                                   final @RequestParam(defaultValue = "100") int limit) {
+        if (limit <= 0 || limit > MAX_LIMIT) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Limit must be between 1 and " + MAX_LIMIT);
+        }
+
+        var messages = repo.findPage(fromQueue, after != null ? parseCursor(after) : null, limit);
+        var next = messages.size() == limit ? DLQCursor.of(messages.getLast()).token() : null;
+        return ResponseEntity.ok(new Response(messages, next, "1.0.0", LocalDateTime.now().toString()));
+    }
+
+    //Bad input from the client, not a server error
+    private DLQCursor parseCursor(String after) {
+        try {
+            return DLQCursor.parse(after);
+        } catch (IllegalArgumentException e) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage(), e);
+        }
     }
 
-    record Response(List<DeadLetterQueue> messageId, String version, String retrievedAt) {
+    record Response(List<DeadLetterQueue> messageId, String next, String version, String retrievedAt) {
     }
 }
@@ -0,0 +1,51 @@
+package jon.db.queue.shared.queue.dead_letter_queue.application;
+
+import jon.db.queue.shared.queue.dead_letter_queue.DLQRedrive;
+import jon.db.queue.shared.queue.dead_letter_queue.DLQRedrive.RedriveProgress;
+import lombok.RequiredArgsConstructor;
+import org.springframework.http.ResponseEntity;
+import org.springframework.util.Assert;
+import org.springframework.web.bind.annotation.DeleteMapping;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.UUID;
+
+@RestController
+@RequestMapping("/dead-letter-queue/redrive")
+@RequiredArgsConstructor
+class RedriveFromDLQ {
+    private final DLQRedrive redrive;
+
+    @PostMapping
+    public ResponseEntity<RedriveProgress> startRedrive(final @RequestBody Request request) {
+        Assert.notNull(request.fromQueue(), "Queue cannot be null");
+
+        var progress = redrive.start(request.fromQueue(), request.arrivedFrom(), request.arrivedTo(), request.rate());
+        return ResponseEntity.accepted().body(progress);
+    }
+
+    @GetMapping
+    public ResponseEntity<List<RedriveProgress>> getRedrives() {
+        return ResponseEntity.ok(redrive.progress());
+    }
+
+    @GetMapping("/{id}")
+    public ResponseEntity<RedriveProgress> getRedrive(final @PathVariable UUID id) {
+        return ResponseEntity.of(redrive.progress(id));
+    }
+
+    @DeleteMapping("/{id}")
+    public ResponseEntity<RedriveProgress> cancelRedrive(final @PathVariable UUID id) {
+        return ResponseEntity.of(redrive.cancel(id));
+    }
+
+    record Request(String fromQueue, LocalDateTime arrivedFrom, LocalDateTime arrivedTo, Integer rate) {
+    }
+}
@@ -0,0 +1,38 @@
+package jon.db.queue.shared.queue.dead_letter_queue.application;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jon.db.queue.shared.queue.dead_letter_queue.DLQRepo;
+import lombok.RequiredArgsConstructor;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+@RestController
+@RequestMapping("/dead-letter-queue")
+@RequiredArgsConstructor
+class StreamAll {
+    private final DLQRepo repo;
+    private final ObjectMapper objectMapper;
+
+    //One JSON per line written as rows come from the DB cursor, for exports of the whole DLQ
+    @GetMapping(value = "/stream", produces = MediaType.APPLICATION_NDJSON_VALUE)
+    public ResponseEntity<StreamingResponseBody> streamAllMessages(final @RequestParam(required = false) String fromQueue) {
+        StreamingResponseBody body = outputStream -> repo.forEach(fromQueue, message -> {
+            try {
+                outputStream.write(objectMapper.writeValueAsBytes(message));
+                outputStream.write('\n');
+            } catch (IOException e) {
+                throw new UncheckedIOException(e); //Client gone, stops the cursor
+            }
+        });
+
+        return ResponseEntity.ok().contentType(MediaType.APPLICATION_NDJSON).body(body);
+    }
+}
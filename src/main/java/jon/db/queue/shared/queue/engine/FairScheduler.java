@@ -0,0 +1,181 @@
+package jon.db.queue.shared.queue.engine;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tag;
+import lombok.extern.slf4j.Slf4j;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One worker budget for every queue of the engine, instead of a pool per queue.
+ * A worker takes one batch at a time from the queue picked by weighted round robin (stride: every batch served moves
+ * the queue 1/weight further in virtual time, the least advanced with work goes next).
+ * Queues below their minimum workers go first, and a queue never gets more workers than its adaptive limit.
+ * A queue coming back from idle starts at the current virtual time, being idle doesn't build up credit.
+ * A wake-up is remembered until a batch of its queue starts, so an empty batch that was already running when it came
+ * doesn't park the queue with the new message waiting for the next poll.
+ */
+@Slf4j
+class FairScheduler {
+    private final int size;
+    private final MeterRegistry meterRegistry;
+    private final List<Lane> lanes = new ArrayList<>();
+    private final List<Thread> workers = new ArrayList<>();
+
+    private double virtualTime;
+    private volatile boolean running;
+
+    FairScheduler(int size, MeterRegistry meterRegistry) {
+        this.size = size;
+        this.meterRegistry = meterRegistry;
+    }
+
+    synchronized void register(QueueRunner<?, ?, ?> runner, int weight, int minWorkers) {
+        var lane = new Lane(runner, weight, minWorkers);
+        lanes.add(lane);
+
+        var tags = List.of(Tag.of("queue", runner.tableName()));
+        Gauge.builder("queue.scheduler.weight", lane, l -> l.weight).tags(tags).register(meterRegistry);
+        Gauge.builder("queue.scheduler.workers", lane, l -> l.active).tags(tags).register(meterRegistry);
+        Gauge.builder("queue.scheduler.backlog", runner, QueueRunner::backlog).tags(tags).register(meterRegistry);
+
+        var guaranteed = lanes.stream().mapToInt(l -> l.minWorkers).sum();
+        if (guaranteed > size) {
+            log.warn("Queues guarantee {} workers but the shared pool only has {}, minimums can't all be honoured", guaranteed, size);
+        }
+    }
+
+    void start() {
+        running = true;
+        for (int i = 1; i <= size; i++) {
+            final String workerName = "Worker-" + i;
+            workers.add(Thread.ofPlatform().name("queue-shared-" + workerName).start(() -> work(workerName)));
+        }
+        log.info("Shared pool of {} workers serving {} queues", size, lanes.size());
+    }
+
+    //Idle workers are woken up to leave, busy ones finish their batch
+    void stop() {
+        running = false;
+        synchronized (this) {
+            notifyAll();
+        }
+    }
+
+    void awaitTermination(Duration timeout) {
+        var deadline = System.nanoTime() + timeout.toNanos();
+        try {
+            for (Thread worker : workers) {
+                if (!worker.join(Duration.ofNanos(Math.max(1, deadline - System.nanoTime())))) {
+                    log.warn("Shared worker {} still busy after {}, the messages it holds will be processed again", worker.getName(), timeout);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    //Work may be waiting (notification or poll)
+    synchronized void ready(QueueRunner<?, ?, ?> runner) {
+        var lane = laneOf(runner);
+        lane.wakeUpPending = true;
+        markReady(lane);
+        notifyAll();
+    }
+
+    private void markReady(Lane lane) {
+        if (!lane.ready) {
+            lane.ready = true;
+            lane.pass = Math.max(lane.pass, virtualTime);
+        }
+    }
+
+    private void work(String workerName) {
+        while (running) {
+            Lane lane;
+            try {
+                lane = take();
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            int fetched = 0;
+            try {
+                fetched = lane.runner.processNextBatch(workerName);
+            } catch (Exception e) {
+                log.error("[{}][{}] Error processing batch: {}", lane.runner.tableName(), workerName, e.getMessage());
+            } finally {
+                release(lane, fetched);
+            }
+        }
+    }
+
+    private synchronized Lane take() throws InterruptedException {
+        Lane lane = null;
+        while (running && (lane = pick()) == null) {
+            wait();
+        }
+        if (!running) {
+            throw new InterruptedException("Shared pool stopped");
+        }
+
+        virtualTime = lane.pass;
+        lane.pass += 1.0 / lane.weight;
+        lane.active++;
+        lane.wakeUpPending = false; //Every wake-up before this batch is served by it
+        return lane;
+    }
+
+    private Lane pick() {
+        Lane guaranteed = null;
+        Lane fair = null;
+        for (Lane lane : lanes) {
+            if (!lane.ready || lane.active >= lane.runner.maxActiveWorkers()) {
+                continue;
+            }
+            if (lane.active < lane.minWorkers && (guaranteed == null || lane.pass < guaranteed.pass)) {
+                guaranteed = lane;
+            }
+            if (fair == null || lane.pass < fair.pass) {
+                fair = lane;
+            }
+        }
+        return guaranteed != null ? guaranteed : fair;
+    }
+
+    //An empty batch means the queue is drained, unless a wake-up came after the last batch started: it waits for the next notification or poll.
+    //The pending wake-up is left for the next batch to take, another empty batch still running mustn't park the queue before that one starts.
+    private synchronized void release(Lane lane, int fetched) {
+        lane.active--;
+        if (fetched > 0) {
+            markReady(lane); //Another worker's empty batch may have parked it meanwhile
+        } else if (!lane.wakeUpPending) {
+            lane.ready = false;
+        }
+        notifyAll();
+    }
+
+    private synchronized Lane laneOf(QueueRunner<?, ?, ?> runner) {
+        return lanes.stream().filter(lane -> lane.runner == runner).findFirst().orElseThrow();
+    }
+
+    private static final class Lane {
+        private final QueueRunner<?, ?, ?> runner;
+        private final int weight;
+        private final int minWorkers;
+
+        private boolean ready = true; //Something may be there from before the start
+        private boolean wakeUpPending;
+        private double pass;
+        private int active;
+
+        private Lane(QueueRunner<?, ?, ?> runner, int weight, int minWorkers) {
+            this.runner = runner;
+            this.weight = weight;
+            this.minWorkers = minWorkers;
+        }
+    }
+}
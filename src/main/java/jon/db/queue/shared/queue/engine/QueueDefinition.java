@@ -0,0 +1,60 @@
+package jon.db.queue.shared.queue.engine;
+
+import jon.db.queue.shared.queue.AdaptiveConcurrency;
+import jon.db.queue.shared.queue.RetryBackoff;
+import jon.db.queue.shared.queue.abstract_queue.QueueEntity;
+import jon.db.queue.shared.queue.abstract_queue.QueueRepo;
+import lombok.Builder;
+
+import java.time.Duration;
+import java.util.Objects;
+
+/**
+ * Everything the engine needs to run a queue, declared once as a bean: the engine gives it its own workers (pool and
+ * adaptive tuning), polling with notifications, batched acks with backoff, poison sweep and retention.
+ * With the shared pool, weight is its share of the workers (minWorkers is guaranteed, the adaptive limit is the cap).
+ * Only tableName, repo, payloadType and handler are mandatory.
+ */
+@Builder
+public record QueueDefinition<T extends QueueEntity<ID>, ID, P>(
+        String tableName,
+        QueueRepo<T, ID> repo,
+        Class<P> payloadType,
+        QueueHandler<P> handler,
+        int maxRetries,
+        AdaptiveConcurrency.Limits concurrency,
+        Integer weight,
+        Duration pollDelay,
+        Duration leaseDuration,
+        RetryBackoff backoff,
+        Duration retention,
+        Duration retentionDelay,
+        Duration poisonThreshold,
+        Boolean poisonOutageGrace,
+        Duration poisonSweepDelay
+) {
+    public QueueDefinition {
+        Objects.requireNonNull(tableName, "tableName");
+        Objects.requireNonNull(repo, "repo");
+        Objects.requireNonNull(payloadType, "payloadType");
+        Objects.requireNonNull(handler, "handler");
+        if (!tableName.matches("^[a-zA-Z0-9_]+$")) {
+            throw new IllegalArgumentException("Nombre de tabla inválido: " + tableName);
+        }
+
+        maxRetries = maxRetries > 0 ? maxRetries : 3;
+        concurrency = concurrency != null ? concurrency : new AdaptiveConcurrency.Limits(1, 3, 1, 10, 0.5);
+        weight = weight != null ? weight : 1;
+        if (weight < 1) {
+            throw new IllegalArgumentException("Queue weight must be at least 1");
+        }
+        pollDelay = pollDelay != null ? pollDelay : Duration.ofSeconds(30);
+        leaseDuration = leaseDuration != null ? leaseDuration : Duration.ofMinutes(2);
+        backoff = backoff != null ? backoff : new RetryBackoff(Duration.ofSeconds(1), Duration.ofMinutes(1), 0.5);
+        retention = retention != null ? retention : Duration.ofDays(1);
+        retentionDelay = retentionDelay != null ? retentionDelay : Duration.ofMinutes(10);
+        poisonThreshold = poisonThreshold != null ? poisonThreshold : Duration.ofHours(1);
+        poisonOutageGrace = poisonOutageGrace == null || poisonOutageGrace;
+        poisonSweepDelay = poisonSweepDelay != null ? poisonSweepDelay : Duration.ofSeconds(10);
+    }
+}
@@ -0,0 +1,112 @@
+package jon.db.queue.shared.queue.engine;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.MeterRegistry;
+import jon.db.queue.shared.queue.liveness.ConsumerLiveness;
+import jon.db.queue.shared.queue.metrics.QueueMetrics;
+import jon.db.queue.shared.queue.notification.QueueNotificationListener;
+import jon.db.queue.shared.queue.partitioning.QueuePartitionManager;
+import jon.db.queue.shared.queue.retention.QueueRetention;
+import jon.db.queue.shared.queue.stats.QueueStats;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.scheduling.TaskScheduler;
+import org.springframework.stereotype.Component;
+
+import javax.sql.DataSource;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Runs every QueueDefinition bean, declaring a queue is enough to get it consumed.
+ * By default every queue gets its own pool, with queue.engine.shared-workers they all share one served by weight.
+ * The character queue keeps its own consumer (SSE monitor, LOCK and VIRTUAL modes), new queues should use this.
+ */
+@Component
+@Slf4j
+public class QueueEngine implements SmartLifecycle {
+    private final ObjectProvider<QueueDefinition<?, ?, ?>> definitions;
+    private final TaskScheduler taskScheduler;
+    private final Dependencies dependencies;
+
+    private final Map<String, QueueRunner<?, ?, ?>> runners = new ConcurrentHashMap<>();
+    private volatile boolean running;
+
+    @Value("${queue.engine.adjust-delay:5s}")
+    private Duration adjustDelay;
+
+    @Value("${queue.engine.shared-workers:0}") //0 gives every queue its own pool
+    private int sharedWorkers;
+
+    @Value("${queue.engine.shutdown-timeout:30s}")
+    private Duration shutdownTimeout;
+
+    private FairScheduler sharedPool;
+
+    QueueEngine(ObjectProvider<QueueDefinition<?, ?, ?>> definitions, TaskScheduler taskScheduler, ObjectMapper objectMapper,
+                QueueNotificationListener notificationListener, ConsumerLiveness liveness, QueueRetention retention,
+                QueuePartitionManager partitionManager, DataSource dataSource, MeterRegistry meterRegistry, QueueMetrics metrics,
+                QueueStats stats) {
+        this.definitions = definitions;
+        this.taskScheduler = taskScheduler;
+        this.dependencies = new Dependencies(objectMapper, notificationListener, liveness, retention, partitionManager, dataSource, meterRegistry, metrics, stats);
+    }
+
+    @Override
+    public void start() {
+        sharedPool = sharedWorkers > 0 ? new FairScheduler(sharedWorkers, dependencies.meterRegistry()) : null;
+
+        definitions.orderedStream().forEach(definition -> {
+            if (runners.containsKey(definition.tableName())) {
+                throw new IllegalStateException("Queue " + definition.tableName() + " is defined twice");
+            }
+
+            var runner = new QueueRunner<>(definition, dependencies, sharedPool);
+            runners.put(definition.tableName(), runner);
+            if (sharedPool != null) {
+                sharedPool.register(runner, definition.weight(), definition.concurrency().minWorkers());
+            }
+            runner.start(taskScheduler, adjustDelay);
+        });
+
+        if (sharedPool != null) {
+            sharedPool.start();
+        }
+        running = true;
+    }
+
+    //Every queue stops taking batches first, then the ones in progress get one shared timeout to finish
+    @Override
+    public void stop() {
+        running = false;
+        runners.values().forEach(QueueRunner::stop);
+        if (sharedPool != null) {
+            sharedPool.stop();
+        }
+
+        var deadline = System.nanoTime() + shutdownTimeout.toNanos();
+        runners.values().forEach(runner -> runner.awaitTermination(remaining(deadline)));
+        if (sharedPool != null) {
+            sharedPool.awaitTermination(remaining(deadline));
+        }
+        runners.values().forEach(QueueRunner::close);
+        runners.clear();
+    }
+
+    private static Duration remaining(long deadline) {
+        return Duration.ofNanos(Math.max(0, deadline - System.nanoTime()));
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    //Shared by every runner
+    record Dependencies(ObjectMapper objectMapper, QueueNotificationListener notificationListener, ConsumerLiveness liveness,
+                        QueueRetention retention, QueuePartitionManager partitionManager, DataSource dataSource, MeterRegistry meterRegistry,
+                        QueueMetrics metrics, QueueStats stats) { }
+}
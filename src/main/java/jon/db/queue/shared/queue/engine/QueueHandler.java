@@ -0,0 +1,7 @@
+package jon.db.queue.shared.queue.engine;
+
+//Business logic of a queue, throwing means the message failed and will be retried (or moved to the DLQ)
+@FunctionalInterface
+public interface QueueHandler<P> {
+    void handle(P payload) throws Exception;
+}
@@ -0,0 +1,212 @@
+package jon.db.queue.shared.queue.engine;
+
+import io.micrometer.core.instrument.Timer;
+import jon.db.queue.shared.queue.AdaptiveConcurrency;
+import jon.db.queue.shared.queue.ClaimToken;
+import jon.db.queue.shared.queue.QueueDrainer;
+import jon.db.queue.shared.queue.abstract_queue.QueueEntity;
+import jon.db.queue.shared.queue.abstract_queue.QueueKey;
+import jon.db.queue.shared.queue.ack.WindowedAcks;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.scheduling.TaskScheduler;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.function.Supplier;
+
+/**
+ * One queue run by the engine, same hot path as the character queue in LEASE mode:
+ * claim with a lease, handle outside any transaction and ack/nack every message as soon as it is done (acks close in
+ * time share an UPDATE), moving the exhausted ones to the DLQ. Tuning is its own, and so are the workers unless the
+ * engine runs a shared pool.
+ */
+@Slf4j
+class QueueRunner<T extends QueueEntity<ID>, ID, P> {
+    private static final int POISON_PAGE_SIZE = 500;
+    private static final int POISON_MAX_PER_PASS = 10_000;
+    private static final Duration ACK_WINDOW = Duration.ofMillis(2);
+    private static final int ACK_MAX_BATCH_SIZE = 500;
+
+    private final QueueDefinition<T, ID, P> definition;
+    private final QueueEngine.Dependencies dependencies;
+    private final AdaptiveConcurrency concurrency;
+    private final QueueDrainer drainer; //Null with the shared pool
+    private final FairScheduler sharedPool;
+    private final WindowedAcks<ID> acks;
+    private final List<ScheduledFuture<?>> tasks = new ArrayList<>();
+
+    private volatile boolean running;
+
+    QueueRunner(QueueDefinition<T, ID, P> definition, QueueEngine.Dependencies dependencies, FairScheduler sharedPool) {
+        this.definition = definition;
+        this.dependencies = dependencies;
+        this.sharedPool = sharedPool;
+        this.acks = new WindowedAcks<>(definition.repo(), definition.tableName(), definition.backoff(), ACK_WINDOW, ACK_MAX_BATCH_SIZE);
+        this.concurrency = new AdaptiveConcurrency(definition.tableName(), definition.concurrency(), dependencies.dataSource(), dependencies.meterRegistry());
+        this.drainer = sharedPool != null ? null : new QueueDrainer(definition.tableName(),
+                Executors.newFixedThreadPool(definition.concurrency().maxWorkers(), Thread.ofPlatform().name(definition.tableName() + "-worker-", 1).factory()),
+                concurrency::workers, this::processNextBatch);
+    }
+
+    String tableName() {
+        return definition.tableName();
+    }
+
+    //Cap in the shared pool, follows the adaptive concurrency
+    int maxActiveWorkers() {
+        return concurrency.workers();
+    }
+
+    void start(TaskScheduler scheduler, Duration adjustDelay) {
+        running = true;
+        dependencies.notificationListener().subscribe(definition.tableName(), this::poll);
+        dependencies.metrics().watch(definition.tableName(), definition.repo());
+        dependencies.liveness().register(definition.tableName());
+
+        tasks.add(scheduler.scheduleWithFixedDelay(this::poll, definition.pollDelay())); //Fallback for missed notifications
+        tasks.add(scheduler.scheduleWithFixedDelay(concurrency::adjust, adjustDelay));
+        tasks.add(scheduler.scheduleWithFixedDelay(this::sweepPoisonedMessages, definition.poisonSweepDelay()));
+        tasks.add(scheduler.scheduleWithFixedDelay(this::deleteOldMessages, definition.retentionDelay()));
+        log.info("Queue {} started with up to {} workers", definition.tableName(), definition.concurrency().maxWorkers());
+    }
+
+    void stop() {
+        running = false;
+        dependencies.liveness().unregister(definition.tableName());
+        tasks.forEach(task -> task.cancel(false));
+        if (drainer != null) {
+            drainer.stop();
+        }
+    }
+
+    void awaitTermination(Duration timeout) {
+        if (drainer != null) {
+            drainer.awaitTermination(timeout);
+        }
+    }
+
+    //Once no worker can ack anymore
+    void close() {
+        acks.close();
+    }
+
+    void poll() {
+        if (!running) {
+            return;
+        }
+
+        if (sharedPool != null) {
+            sharedPool.ready(this);
+        } else {
+            drainer.wakeUp();
+        }
+    }
+
+    int processNextBatch(String workerName) {
+        var batchSize = concurrency.batchSize();
+        var start = System.nanoTime();
+        var lockedBy = ClaimToken.next(workerName);
+
+        var messages = definition.repo().claimNextMessages(definition.tableName(), batchSize, definition.maxRetries(), lockedBy, definition.leaseDuration());
+        log.debug("[{}][{}] Processing {} messages", definition.tableName(), workerName, messages.size());
+
+        var process = dependencies.metrics().of(definition.tableName()).process();
+        int failed = 0;
+        for (T msg : messages) {
+            //The ones behind a slow message may have been claimed again by now, processing them would be a duplicate
+            if (msg.getLockedUntil() != null && LocalDateTime.now().isAfter(msg.getLockedUntil())) {
+                log.warn("[{}][{}] Lease on message {} expired before it was processed, leaving it to the next claim", definition.tableName(), workerName, msg.getInternalId());
+                continue;
+            }
+            if (!handle(workerName, lockedBy, msg, process)) {
+                failed++;
+            }
+        }
+
+        concurrency.record(messages.size(), batchSize, failed, Duration.ofNanos(System.nanoTime() - start));
+        return messages.size();
+    }
+
+    private boolean handle(String workerName, String lockedBy, T msg, Timer process) {
+        var sample = Timer.start();
+        try {
+            definition.handler().handle(dependencies.objectMapper().readValue(msg.getData(), definition.payloadType()));
+            sample.stop(process);
+        } catch (Exception e) {
+            sample.stop(process);
+            log.error("[{}][{}] Error processing message {}: {}", definition.tableName(), workerName, msg.getInternalId(), e.getMessage());
+            if (msg.getNonTimeoutRetries() + 1 >= definition.maxRetries()) {
+                log.warn("[{}][{}] Message {} reached the maximum number of retries ({}), moving to Dead Letter Queue", definition.tableName(), workerName, msg.getInternalId(), definition.maxRetries());
+                acknowledge(workerName, msg, () -> !definition.repo().moveToDeadLetterQueue(definition.tableName(), List.of(msg.getInternalId()), lockedBy).isEmpty());
+            } else {
+                acknowledge(workerName, msg, () -> acks.nack(msg.getInternalId(), lockedBy));
+            }
+            return false;
+        }
+
+        acknowledge(workerName, msg, () -> acks.ack(msg.getInternalId(), lockedBy));
+        return true;
+    }
+
+    //A failed ack must not count as a failed message, the lease will expire and it will be processed again
+    private void acknowledge(String workerName, T msg, Supplier<Boolean> ack) {
+        try {
+            if (!ack.get()) {
+                log.warn("[{}][{}] Lease on message {} expired before ack, it will be processed again", definition.tableName(), workerName, msg.getInternalId());
+            }
+        } catch (Exception e) {
+            log.error("[{}][{}] Error acknowledging message {}, it will be processed again: {}", definition.tableName(), workerName, msg.getInternalId(), e.getMessage());
+        }
+    }
+
+    //Incremental depth, reading it never touches the table
+    long backlog() {
+        return dependencies.stats().of(definition.tableName()).pending();
+    }
+
+    //Same bounded keyset pass as the character queue, see CharacterQueueWorker
+    private void sweepPoisonedMessages() {
+        try {
+            var arrivedBefore = LocalDateTime.now().minus(definition.poisonThreshold());
+            if (definition.poisonOutageGrace()) {
+                var aliveSince = dependencies.liveness().aliveSince(definition.tableName());
+                if (aliveSince.isEmpty() || aliveSince.get().isAfter(arrivedBefore)) {
+                    return;
+                }
+            }
+
+            QueueKey<ID> after = null;
+            long total = 0;
+            List<QueueKey<ID>> page;
+            do {
+                page = definition.repo().movePoisonedToDeadLetterQueue(definition.tableName(), arrivedBefore, after, POISON_PAGE_SIZE);
+                if (!page.isEmpty()) {
+                    after = page.getLast();
+                }
+                total += page.size();
+            } while (page.size() == POISON_PAGE_SIZE && total < POISON_MAX_PER_PASS);
+
+            if (total > 0) {
+                log.info("Moved {} poisoned messages of {} to DLQ", total, definition.tableName());
+            }
+        } catch (Exception e) {
+            log.error("Error moving poisoned messages of {} to DLQ, abnormal: {}", definition.tableName(), e.getMessage());
+        }
+    }
+
+    private void deleteOldMessages() {
+        if (dependencies.partitionManager().isPartitioned(definition.tableName())) {
+            return; //Old partitions are dropped as a whole
+        }
+
+        try {
+            dependencies.retention().purge(definition.repo(), definition.tableName(), definition.retention());
+        } catch (Exception e) {
+            log.error("Error purging old messages of {}: {}", definition.tableName(), e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package jon.db.queue.shared.queue.liveness;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Since when some consumer of a queue has been alive without interruption, on any node.
+ * Every node beats per registered queue, and a beat that comes after more than max-gap of silence restarts the count.
+ * Used to not take an outage as processing time, i.e. messages waiting while nobody consumed them aren't poisoned.
+ * Beats run on their own thread: on the shared task scheduler a long purge or sweep could delay one past max-gap
+ * and reset alive_since while the consumer was fine. The table is created by QueueSchemaManager.
+ */
+@Component
+@Slf4j
+@RequiredArgsConstructor
+public class ConsumerLiveness implements SmartLifecycle {
+    public static final String TABLE_NAME = "queue_consumer_liveness";
+
+    private final JdbcTemplate jdbcTemplate;
+    private final Set<String> queues = ConcurrentHashMap.newKeySet();
+
+    private ScheduledExecutorService heartbeat;
+    private volatile boolean running;
+
+    @Value("${queue.liveness.beat-delay:10000}")
+    private long beatDelay;
+
+    @Value("${queue.liveness.max-gap:30s}")
+    private Duration maxGap;
+
+    //A consumer of the queue runs on this node, beats start with the lifecycle
+    public void register(final String queueName) {
+        queues.add(queueName);
+    }
+
+    public void unregister(final String queueName) {
+        queues.remove(queueName);
+    }
+
+    //After the schema manager, the table has to exist
+    @Override
+    public int getPhase() {
+        return DEFAULT_PHASE - 40;
+    }
+
+    @Override
+    public void start() {
+        if (beatDelay >= maxGap.toMillis()) {
+            log.warn("Liveness beats every {}ms can't keep up with a max gap of {}, consumers will never look alive", beatDelay, maxGap);
+        }
+
+        heartbeat = Executors.newSingleThreadScheduledExecutor(Thread.ofPlatform().name("queue-liveness").daemon().factory());
+        heartbeat.scheduleWithFixedDelay(this::beatAll, 0, beatDelay, TimeUnit.MILLISECONDS);
+        running = true;
+    }
+
+    @Override
+    public void stop() {
+        running = false;
+        heartbeat.shutdownNow();
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    private void beatAll() {
+        for (String queueName : queues) {
+            try {
+                beat(queueName);
+            } catch (Exception e) {
+                log.warn("Could not beat for {}: {}", queueName, e.getMessage());
+            }
+        }
+    }
+
+    void beat(final String queueName) {
+        var now = LocalDateTime.now();
+        jdbcTemplate.update("""
+                INSERT INTO queue_consumer_liveness (queue_name, alive_since, last_seen) VALUES (?, ?, ?)
+                ON CONFLICT (queue_name) DO UPDATE SET
+                    alive_since = CASE WHEN queue_consumer_liveness.last_seen < ? THEN EXCLUDED.alive_since ELSE queue_consumer_liveness.alive_since END,
+                    last_seen = greatest(queue_consumer_liveness.last_seen, EXCLUDED.last_seen)
+                """, queueName, Timestamp.valueOf(now), Timestamp.valueOf(now), Timestamp.valueOf(now.minus(maxGap)));
+    }
+
+    //Empty when nobody is consuming right now
+    public Optional<LocalDateTime> aliveSince(final String queueName) {
+        var rows = jdbcTemplate.queryForList("SELECT alive_since FROM queue_consumer_liveness WHERE queue_name = ? AND last_seen >= ?",
+                Timestamp.class, queueName, Timestamp.valueOf(LocalDateTime.now().minus(maxGap)));
+
+        return rows.stream().findFirst().map(Timestamp::toLocalDateTime);
+    }
+}
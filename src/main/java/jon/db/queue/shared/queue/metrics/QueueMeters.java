@@ -0,0 +1,38 @@
+package jon.db.queue.shared.queue.metrics;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Meters of one queue, all tagged with its table.
+ * latency goes from arrived_at to processed_at, timeInQueue from arrived_at to each claim (retries included).
+ */
+public record QueueMeters(Timer enqueue, Timer claim, Timer process, Timer ack, Timer deadLetter,
+                          Timer latency, Timer timeInQueue,
+                          Counter retries, Counter duplicates, Counter poisoned) {
+
+    static QueueMeters register(String queueName, MeterRegistry meterRegistry) {
+        return new QueueMeters(
+                timer("queue.enqueue", "Insert of a batch of messages", queueName, meterRegistry),
+                timer("queue.claim", "Lock or lease of a batch of messages", queueName, meterRegistry),
+                timer("queue.process", "Handling of one message", queueName, meterRegistry),
+                timer("queue.ack", "Ack of a batch of messages", queueName, meterRegistry),
+                timer("queue.dlq.move", "Move of a set of messages to the dead letter queue", queueName, meterRegistry),
+                Timer.builder("queue.message.latency").description("From arrival to processed")
+                        .tag("queue", queueName).publishPercentileHistogram().register(meterRegistry),
+                Timer.builder("queue.message.wait").description("From arrival to claimed")
+                        .tag("queue", queueName).publishPercentileHistogram().register(meterRegistry),
+                counter("queue.retries", "Messages failed and scheduled for a retry", queueName, meterRegistry),
+                counter("queue.duplicates", "Messages not enqueued because they were already there", queueName, meterRegistry),
+                counter("queue.poisoned", "Messages moved to the dead letter queue by the poison sweep", queueName, meterRegistry));
+    }
+
+    private static Timer timer(String name, String description, String queueName, MeterRegistry meterRegistry) {
+        return Timer.builder(name).description(description).tag("queue", queueName).register(meterRegistry);
+    }
+
+    private static Counter counter(String name, String description, String queueName, MeterRegistry meterRegistry) {
+        return Counter.builder(name).description(description).tag("queue", queueName).register(meterRegistry);
+    }
+}
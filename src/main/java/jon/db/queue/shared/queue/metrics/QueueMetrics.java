@@ -0,0 +1,52 @@
+package jon.db.queue.shared.queue.metrics;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jon.db.queue.shared.queue.abstract_queue.QueueRepo;
+import jon.db.queue.shared.queue.stats.QueueStats;
+import jon.db.queue.shared.queue.stats.QueueStatsSnapshot;
+import lombok.RequiredArgsConstructor;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.ToLongFunction;
+
+/**
+ * Meters of every queue, exposed through Actuator (/actuator/prometheus).
+ * Timers and counters are recorded where the work happens, the gauges (backlog, oldest pending, in flight)
+ * read the incremental queue stats, so a scrape never touches the queue tables.
+ */
+@Component
+@RequiredArgsConstructor
+public class QueueMetrics {
+    private final MeterRegistry meterRegistry;
+    private final QueueStats stats;
+
+    private final Map<String, QueueMeters> meters = new ConcurrentHashMap<>();
+    private final Set<String> watched = ConcurrentHashMap.newKeySet();
+
+    public QueueMeters of(final String queueName) {
+        return meters.computeIfAbsent(queueName, name -> QueueMeters.register(name, meterRegistry));
+    }
+
+    //Called by the consumer of the queue, once
+    public void watch(final String queueName, final QueueRepo<?, ?> repo) {
+        if (!watched.add(queueName)) {
+            return;
+        }
+
+        stats.track(queueName, repo);
+        Gauge.builder("queue.backlog", () -> stat(queueName, QueueStatsSnapshot::pending)).description("Pending messages")
+                .tag("queue", queueName).register(meterRegistry);
+        Gauge.builder("queue.oldest.age", () -> stat(queueName, QueueStatsSnapshot::oldestPendingAgeSeconds)).description("Seconds since the oldest pending message arrived")
+                .tag("queue", queueName).baseUnit("seconds").register(meterRegistry);
+        Gauge.builder("queue.inflight", () -> stat(queueName, QueueStatsSnapshot::inFlight)).description("Messages leased or row locked right now")
+                .tag("queue", queueName).register(meterRegistry);
+    }
+
+    private long stat(String queueName, ToLongFunction<QueueStatsSnapshot> value) {
+        return stats.snapshot(queueName).map(value::applyAsLong).orElse(0L);
+    }
+}
@@ -0,0 +1,164 @@
+package jon.db.queue.shared.queue.notification;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.jdbc.JdbcConnectionDetails;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.stereotype.Component;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Wakes up queue consumers as soon as a row is inserted, instead of waiting for the next poll.
+ * A statement level trigger does a NOTIFY on the channel named after the table, and this component LISTENs
+ * on a dedicated connection (outside Hikari, so it never steals a slot from the workers).
+ * Notifications are best effort, consumers must keep a slow fallback poll.
+ */
+@Component
+@Slf4j
+@RequiredArgsConstructor
+public class QueueNotificationListener implements SmartLifecycle {
+    private static final String NOTIFY_FUNCTION = """
+            CREATE OR REPLACE FUNCTION queue_notify_insert() RETURNS trigger AS $$
+            BEGIN
+                PERFORM pg_notify(TG_TABLE_NAME, '');
+                RETURN NULL;
+            END;
+            $$ LANGUAGE plpgsql
+            """;
+
+    private final JdbcConnectionDetails connectionDetails;
+
+    private final Map<String, List<Runnable>> subscribers = new ConcurrentHashMap<>();
+
+    @Value("${queue.notify.enabled:true}")
+    private boolean enabled;
+
+    @Value("${queue.notify.reconnect-delay:5000}")
+    private long reconnectDelay;
+
+    private volatile boolean running;
+    private Thread listenerThread;
+
+    public void subscribe(final String tableName, final Runnable onInsert) {
+        validateTableNameForSQLInjection(tableName);
+        subscribers.computeIfAbsent(tableName, k -> new CopyOnWriteArrayList<>()).add(onInsert);
+    }
+
+    @Override
+    public void start() {
+        if (!enabled) {
+            log.info("Queue notifications disabled, consumers will rely on polling only");
+            return;
+        }
+
+        running = true;
+        listenerThread = Thread.ofPlatform().name("queue-notification-listener").daemon().start(this::listen);
+    }
+
+    @Override
+    public void stop() {
+        running = false;
+        if (listenerThread != null) {
+            listenerThread.interrupt();
+        }
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    private void listen() {
+        while (running) {
+            try (Connection connection = DriverManager.getConnection(connectionDetails.getJdbcUrl(), connectionDetails.getUsername(), connectionDetails.getPassword())) {
+                var pgConnection = connection.unwrap(PGConnection.class);
+                Set<String> listening = new HashSet<>();
+
+                while (running) {
+                    listenToNewSubscriptions(connection, listening);
+
+                    PGNotification[] notifications = pgConnection.getNotifications(500);
+                    if (notifications == null) {
+                        continue;
+                    }
+
+                    Set<String> channels = new HashSet<>();
+                    for (PGNotification notification : notifications) {
+                        channels.add(notification.getName());
+                    }
+                    channels.forEach(this::wakeUp);
+                }
+            } catch (SQLException e) {
+                log.warn("Queue notification connection lost, reconnecting in {} ms: {}", reconnectDelay, e.getMessage());
+                sleep(reconnectDelay);
+            }
+        }
+    }
+
+    //Something may have arrived while we were not listening: every table is woken up once its LISTEN is in place,
+    //so a row committed before it is caught by the wake-up and one committed after it by a notification
+    private void listenToNewSubscriptions(Connection connection, Set<String> listening) throws SQLException {
+        for (String tableName : subscribers.keySet()) {
+            if (listening.contains(tableName)) {
+                continue;
+            }
+
+            try (Statement statement = connection.createStatement()) {
+                installNotifyTrigger(statement, tableName);
+                statement.execute("LISTEN " + tableName);
+            }
+            listening.add(tableName);
+            log.info("Listening for new messages on {}", tableName);
+            wakeUp(tableName);
+        }
+    }
+
+    private void installNotifyTrigger(Statement statement, String tableName) {
+        try {
+            statement.execute(NOTIFY_FUNCTION);
+            statement.execute("CREATE OR REPLACE TRIGGER " + tableName + "_notify_insert AFTER INSERT ON " + tableName +
+                    " FOR EACH STATEMENT EXECUTE FUNCTION queue_notify_insert()");
+        } catch (SQLException e) {
+            // Other nodes may be installing it at the same time, the trigger will be there anyway
+            log.warn("Could not install notify trigger on {}: {}", tableName, e.getMessage());
+        }
+    }
+
+    private void wakeUp(String tableName) {
+        log.trace("New messages notified on {}", tableName);
+        subscribers.getOrDefault(tableName, List.of()).forEach(callback -> {
+            try {
+                callback.run();
+            } catch (Exception e) {
+                log.error("Error waking up consumer of {}: {}", tableName, e.getMessage());
+            }
+        });
+    }
+
+    private void validateTableNameForSQLInjection(String tableName) {
+        if (!tableName.matches("^[a-zA-Z0-9_]+$")) {
+            throw new IllegalArgumentException("Nombre de tabla inválido: " + tableName);
+        }
+    }
+
+    private void sleep(long ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package jon.db.queue.shared.queue.partitioning;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Optional storage mode where queue tables are partitioned by arrived_at, so retention is a DROP of whole partitions
+ * instead of huge DELETEs, and the table scanned by the consumers stays small.
+ * Tables are converted only while empty (i.e. right after Hibernate creates them), a table with rows is left as it is.
+ * message_id can't be globally unique on a partitioned table, it is unique per partition and inserts check the rest.
+ */
+@Component
+@Slf4j
+@RequiredArgsConstructor
+public class QueuePartitionManager implements SmartLifecycle {
+    private static final String PARTITION_SUFFIX = "_p";
+
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate transactionTemplate;
+
+    private final Set<String> partitionedTables = ConcurrentHashMap.newKeySet();
+    private volatile boolean running;
+
+    @Value("${queue.partitioning.tables:}")
+    private List<String> tables;
+
+    @Value("${queue.partitioning.granularity:DAYS}")
+    private ChronoUnit granularity;
+
+    @Value("${queue.partitioning.premake:3}")
+    private int premake;
+
+    @Value("${queue.partitioning.retention:1d}")
+    private Duration retention;
+
+    @Value("${queue.partitioning.detach-only:false}")
+    private boolean detachOnly;
+
+    public boolean isPartitioned(final String tableName) {
+        return partitionedTables.contains(tableName);
+    }
+
+    @Override
+    public void start() {
+        if (granularity != ChronoUnit.DAYS && granularity != ChronoUnit.HOURS) {
+            throw new IllegalArgumentException("Queue partitions can only be per DAYS or HOURS, not " + granularity);
+        }
+
+        for (String tableName : tables) {
+            validateTableNameForSQLInjection(tableName);
+            try {
+                if (isPartitionedInDB(tableName) || convertToPartitioned(tableName)) {
+                    partitionedTables.add(tableName);
+                    createUpcomingPartitions(tableName);
+                }
+            } catch (Exception e) {
+                log.error("Could not set up partitions for {}, it will keep working unpartitioned: {}", tableName, e.getMessage());
+            }
+        }
+        running = true;
+    }
+
+    //Before the notification listener, it has to install its trigger on the final table
+    @Override
+    public int getPhase() {
+        return DEFAULT_PHASE - 100;
+    }
+
+    @Override
+    public void stop() {
+        running = false;
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    @Scheduled(fixedDelayString = "${queue.partitioning.maintenance-delay:600000}")
+    public void maintainPartitions() {
+        for (String tableName : partitionedTables) {
+            try {
+                createUpcomingPartitions(tableName);
+                dropExpiredPartitions(tableName);
+            } catch (Exception e) {
+                log.error("Error maintaining partitions of {}: {}", tableName, e.getMessage());
+            }
+        }
+    }
+
+    private boolean isPartitionedInDB(String tableName) {
+        return Boolean.TRUE.equals(jdbcTemplate.queryForObject(
+                "SELECT EXISTS (SELECT 1 FROM pg_partitioned_table pt JOIN pg_class c ON c.oid = pt.partrelid WHERE c.relname = ?)",
+                Boolean.class, tableName));
+    }
+
+    private boolean convertToPartitioned(String tableName) {
+        return Boolean.TRUE.equals(transactionTemplate.execute(status -> {
+            jdbcTemplate.execute("LOCK TABLE " + tableName + " IN ACCESS EXCLUSIVE MODE");
+
+            if (Boolean.TRUE.equals(jdbcTemplate.queryForObject("SELECT EXISTS (SELECT 1 FROM " + tableName + ")", Boolean.class))) {
+                log.warn("{} already has rows, drain it to convert it to a partitioned table", tableName);
+                return false;
+            }
+
+            var sequence = tableName + "_internal_id_seq";
+            jdbcTemplate.execute("CREATE TABLE " + tableName + "_partitioned (LIKE " + tableName + " INCLUDING DEFAULTS) PARTITION BY RANGE (arrived_at)");
+            jdbcTemplate.execute("DROP TABLE " + tableName);
+            jdbcTemplate.execute("ALTER TABLE " + tableName + "_partitioned RENAME TO " + tableName);
+            jdbcTemplate.execute("CREATE SEQUENCE IF NOT EXISTS " + sequence + " OWNED BY " + tableName + ".internal_id");
+            jdbcTemplate.execute("ALTER TABLE " + tableName + " ALTER COLUMN internal_id SET DEFAULT nextval('" + sequence + "')");
+            jdbcTemplate.execute("ALTER TABLE " + tableName + " ADD PRIMARY KEY (internal_id, arrived_at)");
+            //Safety net if maintenance falls behind, it must stay empty so new ranges can be created
+            jdbcTemplate.execute("CREATE TABLE " + tableName + "_default PARTITION OF " + tableName + " DEFAULT");
+            jdbcTemplate.execute("CREATE UNIQUE INDEX ON " + tableName + "_default (message_id)");
+
+            log.info("Converted {} to a table partitioned by arrived_at per {}", tableName, granularity);
+            return true;
+        }));
+    }
+
+    private void createUpcomingPartitions(String tableName) {
+        var start = LocalDateTime.now().truncatedTo(granularity);
+
+        for (int i = 0; i <= premake; i++) {
+            var from = start.plus(i, granularity);
+            var partition = partitionName(tableName, from);
+
+            transactionTemplate.executeWithoutResult(status -> {
+                jdbcTemplate.execute("CREATE TABLE IF NOT EXISTS " + partition + " PARTITION OF " + tableName +
+                        " FOR VALUES FROM ('" + from + "') TO ('" + from.plus(1, granularity) + "') WITH (fillfactor = 70)");
+                jdbcTemplate.execute("CREATE UNIQUE INDEX IF NOT EXISTS " + partition + "_message_id ON " + partition + " (message_id)");
+            });
+        }
+    }
+
+    //A partition goes away only when it is out of the retention window and every message in it was processed
+    private void dropExpiredPartitions(String tableName) {
+        var threshold = LocalDateTime.now().minus(retention);
+
+        for (String partition : findPartitions(tableName)) {
+            var from = partitionStart(tableName, partition);
+            if (from == null || from.plus(1, granularity).isAfter(threshold)) {
+                continue;
+            }
+
+            if (Boolean.TRUE.equals(jdbcTemplate.queryForObject("SELECT EXISTS (SELECT 1 FROM " + partition + " WHERE processed_at IS NULL)", Boolean.class))) {
+                log.debug("Partition {} still has unprocessed messages, keeping it", partition);
+                continue;
+            }
+
+            transactionTemplate.executeWithoutResult(status -> {
+                jdbcTemplate.execute("ALTER TABLE " + tableName + " DETACH PARTITION " + partition);
+                if (!detachOnly) {
+                    jdbcTemplate.execute("DROP TABLE " + partition);
+                }
+            });
+            log.info("{} partition {} of {}", detachOnly ? "Detached" : "Dropped", partition, tableName);
+        }
+    }
+
+    private List<String> findPartitions(String tableName) {
+        return jdbcTemplate.queryForList("""
+                SELECT c.relname FROM pg_inherits i
+                JOIN pg_class c ON c.oid = i.inhrelid
+                JOIN pg_class p ON p.oid = i.inhparent
+                WHERE p.relname = ?
+                """, String.class, tableName);
+    }
+
+    private String partitionName(String tableName, LocalDateTime from) {
+        return tableName + PARTITION_SUFFIX + from.format(formatter());
+    }
+
+    private LocalDateTime partitionStart(String tableName, String partition) {
+        var prefix = tableName + PARTITION_SUFFIX;
+        if (!partition.startsWith(prefix)) {
+            return null; //The default partition
+        }
+
+        var suffix = partition.substring(prefix.length());
+        return granularity == ChronoUnit.HOURS
+                ? LocalDateTime.parse(suffix, formatter())
+                : LocalDate.parse(suffix, formatter()).atStartOfDay();
+    }
+
+    private DateTimeFormatter formatter() {
+        return DateTimeFormatter.ofPattern(granularity == ChronoUnit.HOURS ? "yyyyMMddHH" : "yyyyMMdd");
+    }
+
+    private void validateTableNameForSQLInjection(String tableName) {
+        if (!tableName.matches("^[a-zA-Z0-9_]+$")) {
+            throw new IllegalArgumentException("Nombre de tabla inválido: " + tableName);
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package jon.db.queue.shared.queue.retention;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jon.db.queue.shared.queue.abstract_queue.QueueRepo;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+
+/**
+ * Deletes processed messages out of the retention window in bounded chunks.
+ * Every chunk is its own transaction, so locks are short, memory is constant and the bind parameters never explode.
+ */
+@Component
+@Slf4j
+@RequiredArgsConstructor
+public class QueueRetention {
+    private final MeterRegistry meterRegistry;
+
+    @Value("${queue.retention.chunk-size:1000}")
+    private int chunkSize;
+
+    @Value("${queue.retention.chunk-pause:100ms}")
+    private Duration chunkPause;
+
+    public long purge(final QueueRepo<?, ?> repo, final String tableName, final Duration retention) {
+        var olderThan = LocalDateTime.now().minus(retention);
+        var deletedCounter = Counter.builder("queue.retention.deleted").tag("queue", tableName).register(meterRegistry);
+        var chunkTimer = Timer.builder("queue.retention.chunk").tag("queue", tableName).register(meterRegistry);
+
+        long total = 0;
+        int deleted;
+        do {
+            deleted = chunkTimer.record(() -> repo.deleteOldMessages(tableName, olderThan, chunkSize));
+            deletedCounter.increment(deleted);
+            total += deleted;
+
+            log.debug("Deleted {} old messages from {}, {} so far", deleted, tableName, total);
+            if (deleted == chunkSize) {
+                sleep(chunkPause.toMillis()); //Leave room for the consumers
+            }
+        } while (deleted == chunkSize && !Thread.currentThread().isInterrupted());
+
+        if (total > 0) {
+            log.info("Purged {} messages older than {} from {}", total, olderThan, tableName);
+        }
+        return total;
+    }
+
+    private void sleep(long ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
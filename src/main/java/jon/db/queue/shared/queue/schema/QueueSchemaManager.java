@@ -0,0 +1,191 @@
+package jon.db.queue.shared.queue.schema;
+
+import jon.db.queue.shared.queue.dead_letter_queue.DeadLetterQueue;
+import jon.db.queue.shared.queue.liveness.ConsumerLiveness;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Versioned migrations for the parts of the queue tables Hibernate doesn't know about (ddl-auto only creates columns):
+ * partial indexes matching the predicates of the hot queries and a lower fillfactor for the constant updates.
+ * Applied versions are stored per table in queue_schema_version, and the indexes are verified on every startup.
+ * The dead letter queue and the consumer liveness table have their own lists, versioned the same way.
+ * Migrations are written to be idempotent, so they can be reapplied when a table is recreated (i.e. when partitioned).
+ */
+@Component
+@Slf4j
+@RequiredArgsConstructor
+public class QueueSchemaManager implements SmartLifecycle {
+    private static final String TABLE = "{table}";
+
+    private static final List<QueueMigration> QUEUE_MIGRATIONS = List.of(
+            new QueueMigration(1, "Leave room for HOT updates, rows are updated several times",
+                    """
+                    DO $$ BEGIN
+                        IF NOT EXISTS (SELECT 1 FROM pg_partitioned_table pt JOIN pg_class c ON c.oid = pt.partrelid WHERE c.relname = '{table}') THEN
+                            ALTER TABLE {table} SET (fillfactor = 70);
+                        END IF;
+                    END $$
+                    """, null),
+            //Superseded by 6 and dropped by 8, not verified anymore
+            new QueueMigration(2, "Claim of pending messages (lockNextMessages, claimNextMessages)",
+                    "CREATE INDEX IF NOT EXISTS {table}_pending_idx ON {table} (internal_id) WHERE processed_at IS NULL",
+                    null),
+            new QueueMigration(3, "Poison sweep of old pending messages (movePoisonedToDeadLetterQueue)",
+                    "CREATE INDEX IF NOT EXISTS {table}_pending_arrived_at_idx ON {table} (arrived_at) WHERE processed_at IS NULL",
+                    "{table}_pending_arrived_at_idx"),
+            new QueueMigration(4, "Retention purge of processed messages (deleteOldMessages)",
+                    "CREATE INDEX IF NOT EXISTS {table}_processed_arrived_at_idx ON {table} (arrived_at) WHERE processed_at IS NOT NULL",
+                    "{table}_processed_arrived_at_idx"),
+            new QueueMigration(5, "Retry schedule of failed messages",
+                    "ALTER TABLE {table} ADD COLUMN IF NOT EXISTS next_attempt_at timestamp(6)",
+                    null),
+            new QueueMigration(6, "Claim of pending messages skipping the ones backing off (lockNextMessages, claimNextMessages)",
+                    "CREATE INDEX IF NOT EXISTS {table}_pending_next_attempt_idx ON {table} (next_attempt_at, internal_id) WHERE processed_at IS NULL",
+                    "{table}_pending_next_attempt_idx"),
+            //A NULL next_attempt_at forced an OR the index above can't serve in order, due messages are now a plain range on it
+            new QueueMigration(7, "Every message has its next attempt, the claim walks the next_attempt_at index in order",
+                    """
+                    UPDATE {table} SET next_attempt_at = arrived_at WHERE next_attempt_at IS NULL;
+                    ALTER TABLE {table} ALTER COLUMN next_attempt_at SET NOT NULL
+                    """, null),
+            new QueueMigration(8, "The claims walk the next_attempt_at index, the internal_id one is only write overhead",
+                    "DROP INDEX IF EXISTS {table}_pending_idx", null)
+    );
+
+    private static final List<QueueMigration> DEAD_LETTER_QUEUE_MIGRATIONS = List.of(
+            new QueueMigration(1, "Keyset listing of one queue in arrival order (findPage, forEach)",
+                    "CREATE INDEX IF NOT EXISTS {table}_from_queue_arrived_at_idx ON {table} (from_queue, arrived_at, message_id)",
+                    "{table}_from_queue_arrived_at_idx"),
+            new QueueMigration(2, "Keyset listing of every queue in arrival order (findPage, forEach)",
+                    "CREATE INDEX IF NOT EXISTS {table}_arrived_at_idx ON {table} (arrived_at, message_id)",
+                    "{table}_arrived_at_idx")
+    );
+
+    private static final List<QueueMigration> LIVENESS_MIGRATIONS = List.of(
+            new QueueMigration(1, "Consumer heartbeats per queue (ConsumerLiveness)",
+                    """
+                    CREATE TABLE IF NOT EXISTS {table} (
+                        queue_name varchar(255) PRIMARY KEY,
+                        alive_since timestamp NOT NULL,
+                        last_seen timestamp NOT NULL
+                    )
+                    """, null)
+    );
+
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate transactionTemplate;
+
+    private volatile boolean running;
+
+    @Value("${queue.schema.tables:}")
+    private List<String> tables;
+
+    @Override
+    public void start() {
+        jdbcTemplate.execute("""
+                CREATE TABLE IF NOT EXISTS queue_schema_version (
+                    table_name varchar(255) NOT NULL,
+                    version int NOT NULL,
+                    description varchar(255),
+                    applied_at timestamp NOT NULL DEFAULT now(),
+                    PRIMARY KEY (table_name, version)
+                )
+                """);
+
+        for (String tableName : tables) {
+            validateTableNameForSQLInjection(tableName);
+            migrate(tableName, QUEUE_MIGRATIONS);
+            verify(tableName, QUEUE_MIGRATIONS);
+        }
+
+        migrate(DeadLetterQueue.TABLE_NAME, DEAD_LETTER_QUEUE_MIGRATIONS);
+        verify(DeadLetterQueue.TABLE_NAME, DEAD_LETTER_QUEUE_MIGRATIONS);
+        migrate(ConsumerLiveness.TABLE_NAME, LIVENESS_MIGRATIONS);
+        running = true;
+    }
+
+    //After partitioning, converting a table recreates it
+    @Override
+    public int getPhase() {
+        return DEFAULT_PHASE - 50;
+    }
+
+    @Override
+    public void stop() {
+        running = false;
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    private void migrate(String tableName, List<QueueMigration> migrations) {
+        transactionTemplate.executeWithoutResult(status -> {
+            //Several nodes can start at the same time
+            jdbcTemplate.queryForList("SELECT pg_advisory_xact_lock(hashtext('queue_schema_version'), hashtext(?))", tableName);
+
+            Integer current = jdbcTemplate.queryForObject("SELECT coalesce(max(version), 0) FROM queue_schema_version WHERE table_name = ?", Integer.class, tableName);
+
+            for (QueueMigration migration : migrations) {
+                if (migration.version() <= current) {
+                    continue;
+                }
+
+                log.info("Applying queue schema version {} to {}: {}", migration.version(), tableName, migration.description());
+                jdbcTemplate.execute(migration.sql(tableName));
+                jdbcTemplate.update("INSERT INTO queue_schema_version (table_name, version, description) VALUES (?, ?, ?)",
+                        tableName, migration.version(), migration.description());
+            }
+        });
+    }
+
+    private void verify(String tableName, List<QueueMigration> migrations) {
+        var missing = missingIndexes(tableName, migrations);
+        if (missing.isEmpty()) {
+            return;
+        }
+
+        log.warn("Indexes {} are missing on {}, reapplying the queue schema", missing, tableName);
+        migrations.forEach(migration -> jdbcTemplate.execute(migration.sql(tableName)));
+
+        missing = missingIndexes(tableName, migrations);
+        if (!missing.isEmpty()) {
+            throw new IllegalStateException("Indexes " + missing + " could not be created on " + tableName);
+        }
+    }
+
+    private List<String> missingIndexes(String tableName, List<QueueMigration> migrations) {
+        var existing = new HashSet<>(jdbcTemplate.queryForList("SELECT indexname FROM pg_indexes WHERE tablename = ?", String.class, tableName));
+
+        return migrations.stream()
+                .map(migration -> migration.index(tableName))
+                .filter(index -> index != null && !existing.contains(index))
+                .toList();
+    }
+
+    private void validateTableNameForSQLInjection(String tableName) {
+        if (!tableName.matches("^[a-zA-Z0-9_]+$")) {
+            throw new IllegalArgumentException("Nombre de tabla inválido: " + tableName);
+        }
+    }
+
+    private record QueueMigration(int version, String description, String sqlTemplate, String indexTemplate) {
+        String sql(String tableName) {
+            return sqlTemplate.replace(TABLE, tableName);
+        }
+
+        String index(String tableName) {
+            return indexTemplate == null ? null : indexTemplate.replace(TABLE, tableName);
+        }
+    }
+}
@@ -0,0 +1,246 @@
+package jon.db.queue.shared.queue.stats;
+
+import jon.db.queue.shared.queue.abstract_queue.QueueRepo;
+import jon.db.queue.shared.queue.dead_letter_queue.DeadLetterQueue;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Depth of every queue (pending, in flight, processed, in the DLQ) kept up to date in memory, so reading it never scans a table.
+ * The repos apply every enqueue, claim, ack, retry and DLQ move as a delta once committed, and the values are reconciled
+ * with the DB on a schedule: capped counts on the partial indexes, and pg_class.reltuples estimates above the cap.
+ * A node only sees its own deltas, what other nodes do shows up at the next reconciliation.
+ */
+@Component
+@Slf4j
+@RequiredArgsConstructor
+public class QueueStats {
+    private final JdbcTemplate jdbcTemplate;
+
+    private final Map<String, TrackedQueue> queues = new ConcurrentHashMap<>();
+
+    @Value("${queue.stats.count-cap:100000}")
+    private int countCap;
+
+    public QueueDepth of(final String queueName) {
+        return queues.computeIfAbsent(queueName, name -> new TrackedQueue()).depth;
+    }
+
+    //For names that come from outside, so they never add an entry
+    public Optional<QueueDepth> tracked(final String queueName) {
+        var queue = queues.get(queueName);
+        return queue != null && queue.repo != null ? Optional.of(queue.depth) : Optional.empty();
+    }
+
+    //Only tracked queues are reconciled and served
+    public void track(final String queueName, final QueueRepo<?, ?> repo) {
+        validateTableNameForSQLInjection(queueName);
+        queues.computeIfAbsent(queueName, name -> new TrackedQueue()).repo = repo;
+    }
+
+    public Optional<QueueStatsSnapshot> snapshot(final String queueName) {
+        var queue = queues.get(queueName);
+        if (queue == null || queue.repo == null) {
+            return Optional.empty();
+        }
+
+        var depth = queue.depth;
+        var now = LocalDateTime.now();
+        return Optional.of(new QueueStatsSnapshot(queueName,
+                depth.pending.get(), depth.inFlight.get(), depth.processed.get(), depth.deadLettered.get(),
+                queue.oldestPendingArrivedAt != null ? Math.max(0, Duration.between(queue.oldestPendingArrivedAt, now).toSeconds()) : 0,
+                queue.estimated, queue.reconciledAt != null ? queue.reconciledAt.toString() : null));
+    }
+
+    @Scheduled(fixedDelayString = "${queue.stats.reconcile-delay:30000}")
+    public void reconcile() {
+        queues.forEach((queueName, queue) -> {
+            if (queue.repo == null) {
+                return;
+            }
+            try {
+                reconcile(queueName, queue);
+            } catch (Exception e) {
+                log.warn("Could not reconcile the stats of {}, keeping the incremental ones: {}", queueName, e.getMessage());
+            }
+        });
+    }
+
+    private void reconcile(String queueName, TrackedQueue queue) {
+        var depth = queue.depth;
+        var pending = countUpTo("SELECT 1 FROM " + queueName + " WHERE processed_at IS NULL");
+        var processed = countUpTo("SELECT 1 FROM " + queueName + " WHERE processed_at IS NOT NULL");
+        var deadLettered = countUpTo("SELECT 1 FROM " + DeadLetterQueue.TABLE_NAME + " WHERE from_queue = ?", queueName);
+        var inFlight = queue.repo.countLockedRows(queueName);
+
+        var estimated = false;
+        if (pending >= countCap) {
+            pending = Math.max(pending, estimateRows(queueName + "_pending_next_attempt_idx"));
+            estimated = true;
+        }
+        if (processed >= countCap) {
+            processed = Math.max(processed, estimateRows(queueName + "_processed_arrived_at_idx"));
+            estimated = true;
+        }
+
+        //Marked after counting: a delta committed while counting is dropped until the next reconciliation, never counted twice
+        var pendingMark = depth.pending.mark();
+        var inFlightMark = depth.inFlight.mark();
+        var processedMark = depth.processed.mark();
+        var deadLetteredMark = depth.deadLettered.mark();
+        depth.pending.reconcile(pending, pendingMark);
+        depth.inFlight.reconcile(inFlight, inFlightMark);
+        depth.processed.reconcile(processed, processedMark);
+        depth.deadLettered.reconcile(deadLettered, deadLetteredMark);
+        queue.oldestPendingArrivedAt = queue.repo.findOldestPendingArrivedAt(queueName).orElse(null);
+        queue.estimated = estimated;
+        queue.reconciledAt = LocalDateTime.now();
+        log.debug("Reconciled stats of {}: {} pending, {} in flight, {} processed, {} in the DLQ{}",
+                queueName, pending, inFlight, processed, deadLettered, estimated ? " (estimated)" : "");
+    }
+
+    private long countUpTo(String select, Object... parameters) {
+        var arguments = Arrays.copyOf(parameters, parameters.length + 1);
+        arguments[parameters.length] = countCap;
+        var count = jdbcTemplate.queryForObject("SELECT count(*) FROM (" + select + " LIMIT ?) capped", Long.class, arguments);
+        return count != null ? count : 0;
+    }
+
+    //Rows in the partial index as of the last ANALYZE, summing the partitions when the table is partitioned
+    private long estimateRows(String indexName) {
+        var estimate = jdbcTemplate.queryForObject("""
+                SELECT coalesce(sum(greatest(c.reltuples, 0)), 0)::bigint FROM pg_class c
+                WHERE c.relname = ?
+                   OR c.oid IN (SELECT i.inhrelid FROM pg_inherits i JOIN pg_class p ON p.oid = i.inhparent WHERE p.relname = ?)
+                """, Long.class, indexName, indexName);
+        return estimate != null ? estimate : 0;
+    }
+
+    private void validateTableNameForSQLInjection(String tableName) {
+        if (!tableName.matches("^[a-zA-Z0-9_]+$")) {
+            throw new IllegalArgumentException("Nombre de tabla inválido: " + tableName);
+        }
+    }
+
+    private static final class TrackedQueue {
+        private final QueueDepth depth = new QueueDepth();
+        private volatile QueueRepo<?, ?> repo;
+        private volatile LocalDateTime oldestPendingArrivedAt;
+        private volatile boolean estimated;
+        private volatile LocalDateTime reconciledAt;
+    }
+
+    /**
+     * Deltas of one queue, called by the repos once the change is committed.
+     * Next to the levels, running totals of what this node committed: never reconciled, rates are their differences.
+     */
+    public static final class QueueDepth {
+        private final Level pending = new Level();
+        private final Level inFlight = new Level();
+        private final Level processed = new Level();
+        private final Level deadLettered = new Level();
+        private final LongAdder enqueuedTotal = new LongAdder();
+        private final LongAdder ackedTotal = new LongAdder();
+        private final LongAdder retriedTotal = new LongAdder();
+        private final LongAdder deadLetteredTotal = new LongAdder();
+
+        public void enqueued(int count) {
+            pending.add(count);
+            enqueuedTotal.add(count);
+        }
+
+        public void claimed(int count) {
+            inFlight.add(count);
+        }
+
+        public void acked(int count) {
+            inFlight.add(-count);
+            pending.add(-count);
+            processed.add(count);
+            ackedTotal.add(count);
+        }
+
+        //Back to pending, waiting for its retry
+        public void released(int count) {
+            inFlight.add(-count);
+            retriedTotal.add(count);
+        }
+
+        public void deadLettered(int count, boolean wereInFlight) {
+            if (wereInFlight) {
+                inFlight.add(-count);
+            }
+            pending.add(-count);
+            deadLettered.add(count);
+            deadLetteredTotal.add(count);
+        }
+
+        //The ones already in the queue only leave the DLQ
+        public void redriven(int count, int alreadyQueued) {
+            deadLettered.add(-(count + alreadyQueued));
+            pending.add(count);
+        }
+
+        public void purged(int count) {
+            processed.add(-count);
+        }
+
+        public long pending() {
+            return pending.get();
+        }
+
+        public long inFlight() {
+            return inFlight.get();
+        }
+
+        public long enqueuedTotal() {
+            return enqueuedTotal.sum();
+        }
+
+        public long ackedTotal() {
+            return ackedTotal.sum();
+        }
+
+        public long retriedTotal() {
+            return retriedTotal.sum();
+        }
+
+        public long deadLetteredTotal() {
+            return deadLetteredTotal.sum();
+        }
+    }
+
+    //Last reconciled value plus the deltas seen since
+    private static final class Level {
+        private volatile long base;
+        private final LongAdder delta = new LongAdder();
+
+        void add(long count) {
+            delta.add(count);
+        }
+
+        long get() {
+            return Math.max(0, base + delta.sum());
+        }
+
+        long mark() {
+            return delta.sum();
+        }
+
+        void reconcile(long value, long mark) {
+            base = value - mark;
+        }
+    }
+}
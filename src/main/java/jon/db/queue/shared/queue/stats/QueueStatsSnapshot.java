@@ -0,0 +1,7 @@
+package jon.db.queue.shared.queue.stats;
+
+//estimated is true when some count went over the cap and comes from pg_class.reltuples
+//The oldest pending message is the one seen at the last reconciliation, its age keeps growing until the next one
+public record QueueStatsSnapshot(String queue, long pending, long inFlight, long processed, long deadLettered,
+                                 long oldestPendingAgeSeconds, boolean estimated, String reconciledAt) {
+}
@@ -0,0 +1,25 @@
+package jon.db.queue.shared.queue.stats.application;
+
+import jon.db.queue.shared.queue.stats.QueueStats;
+import jon.db.queue.shared.queue.stats.QueueStatsSnapshot;
+import lombok.RequiredArgsConstructor;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+@RestController
+@RequestMapping("/queues")
+@RequiredArgsConstructor
+class GetQueueStats {
+    private final QueueStats stats;
+
+    //Served from memory, cheap enough to be polled every second (i.e. by an autoscaler)
+    @GetMapping("/{name}/stats")
+    public ResponseEntity<QueueStatsSnapshot> getStats(final @PathVariable String name) {
+        return stats.snapshot(name)
+                .map(ResponseEntity::ok)
+                .orElse(ResponseEntity.notFound().build());
+    }
+}
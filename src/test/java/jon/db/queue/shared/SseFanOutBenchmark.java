@@ -0,0 +1,95 @@
+package jon.db.queue.shared;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of sending one monitor event to every connected client, as the number of clients grows.
+ * perClientSerialization is how events were sent before SseFrame: an SseEventBuilder per client, with the payload
+ * serialized by Jackson for each one of them. sharedFrame encodes the frame once and writes the same bytes to all.
+ * Every client writes into its own buffer (reset per event) in both, so the difference is the serialization alone.
+ * Run main (test classpath), i.e. from the IDE.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SseFanOutBenchmark {
+    @Param({"1", "10", "50", "200"})
+    public int clients;
+
+    private final ObjectMapper objectMapper = new ObjectMapper().findAndRegisterModules();
+    private Map<String, Object> event;
+    private ByteArrayOutputStream[] connections;
+    private long id;
+
+    @Setup
+    public void setUp() {
+        event = Map.of(
+                "internalId", 123_456L,
+                "messageId", UUID.randomUUID(),
+                "data", "{\"name\":\"Rick Sanchez\",\"status\":\"Alive\",\"species\":\"Human\",\"origin\":\"Earth (C-137)\"}",
+                "arrivedAt", LocalDateTime.now(),
+                "nonTimeoutRetries", 0,
+                "processedAt", LocalDateTime.now().toString());
+        connections = new ByteArrayOutputStream[clients];
+        for (int i = 0; i < clients; i++) {
+            connections[i] = new ByteArrayOutputStream(1024);
+        }
+    }
+
+    @Benchmark
+    public ByteArrayOutputStream[] perClientSerialization() throws IOException {
+        var eventId = String.valueOf(++id);
+        for (var connection : connections) {
+            connection.reset();
+            var items = SseEmitter.event().id(eventId).name("update").data(event).build();
+            for (var item : items) {
+                connection.write(item.getData() instanceof String text
+                        ? text.getBytes(StandardCharsets.UTF_8)
+                        : objectMapper.writeValueAsBytes(item.getData()));
+            }
+        }
+        return connections;
+    }
+
+    @Benchmark
+    public ByteArrayOutputStream[] sharedFrame() throws IOException {
+        var frame = SseFrame.encode(objectMapper, ++id, "update", event);
+        for (var connection : connections) {
+            connection.reset();
+            for (var item : frame.items()) {
+                connection.write((byte[]) item.getData());
+            }
+        }
+        return connections;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(SseFanOutBenchmark.class.getSimpleName()).build()).run();
+    }
+}
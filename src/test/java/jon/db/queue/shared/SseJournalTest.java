@@ -0,0 +1,93 @@
+package jon.db.queue.shared;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.http.MediaType;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyEmitter;
+
+import java.time.Duration;
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class SseJournalTest {
+	private static final long NOW = 1_000_000;
+
+	@Test
+	void numbersEventsAfterTheLastOneAndEncodesEachWithItsId() {
+		var journal = new SseJournal(10, Duration.ofMinutes(1));
+		var start = journal.lastSeq();
+
+		var first = journal.append(SseJournalTest::frame, NOW);
+		var second = journal.append(SseJournalTest::frame, NOW);
+
+		assertThat(first.seq()).isEqualTo(start + 1);
+		assertThat(second.seq()).isEqualTo(start + 2);
+		assertThat(journal.lastSeq()).isEqualTo(start + 2);
+		assertThat(second.frame().items()).extracting(ResponseBodyEmitter.DataWithMediaType::getData).containsExactly("id:" + (start + 2));
+	}
+
+	@Test
+	void coversAClientThatMissedOnlyEventsStillHere() {
+		var journal = new SseJournal(10, Duration.ofMinutes(1));
+		var start = journal.lastSeq();
+		for (int i = 0; i < 3; i++) {
+			journal.append(SseJournalTest::frame, NOW);
+		}
+
+		assertThat(journal.covers(start, NOW)).isTrue(); //Saw nothing of this run yet, everything is here
+		assertThat(journal.covers(start + 2, NOW)).isTrue();
+		assertThat(journal.covers(start + 3, NOW)).isTrue(); //Up to date
+		assertThat(journal.after(start + 1)).extracting(SseJournal.Entry::seq).containsExactly(start + 2, start + 3);
+		assertThat(journal.after(start + 3)).isEmpty();
+	}
+
+	@Test
+	void doesNotCoverIdsOfAPreviousRunNorOnesNotSentYet() {
+		var journal = new SseJournal(10, Duration.ofMinutes(1));
+		var start = journal.lastSeq();
+		journal.append(SseJournalTest::frame, NOW);
+
+		assertThat(journal.covers(42, NOW)).isFalse();
+		assertThat(journal.covers(start + 2, NOW)).isFalse();
+	}
+
+	@Test
+	void evictsTheOldestBeyondItsSize() {
+		var journal = new SseJournal(2, Duration.ofMinutes(1));
+		var start = journal.lastSeq();
+		for (int i = 0; i < 4; i++) {
+			journal.append(SseJournalTest::frame, NOW);
+		}
+
+		assertThat(journal.after(start)).extracting(SseJournal.Entry::seq).containsExactly(start + 3, start + 4);
+		assertThat(journal.covers(start + 1, NOW)).isFalse(); //Missed start + 2, it is gone
+		assertThat(journal.covers(start + 2, NOW)).isTrue();
+	}
+
+	@Test
+	void evictsEventsOlderThanItsWindow() {
+		var journal = new SseJournal(10, Duration.ofSeconds(30));
+		var start = journal.lastSeq();
+		journal.append(SseJournalTest::frame, NOW);
+		journal.append(SseJournalTest::frame, NOW + 20_000);
+
+		assertThat(journal.covers(start, NOW + 40_000)).isFalse();
+		assertThat(journal.covers(start + 1, NOW + 40_000)).isTrue();
+		assertThat(journal.isEmpty(NOW + 60_000)).isTrue();
+	}
+
+	@Test
+	void anEmptyJournalOnlyCoversAClientThatIsUpToDate() {
+		var journal = new SseJournal(10, Duration.ofSeconds(30));
+		var start = journal.lastSeq();
+		journal.append(SseJournalTest::frame, NOW);
+
+		assertThat(journal.isEmpty(NOW + 60_000)).isTrue();
+		assertThat(journal.covers(start + 1, NOW + 60_000)).isTrue();
+		assertThat(journal.covers(start, NOW + 60_000)).isFalse();
+	}
+
+	private static SseFrame frame(long seq) {
+		return new SseFrame(Set.of(new ResponseBodyEmitter.DataWithMediaType("id:" + seq, MediaType.TEXT_PLAIN)));
+	}
+}
@@ -0,0 +1,107 @@
+package jon.db.queue.shared.queue;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class AdaptiveConcurrencyTest {
+	private static final Duration MS = Duration.ofMillis(1);
+
+	private final AdaptiveConcurrency concurrency =
+			new AdaptiveConcurrency("test", new AdaptiveConcurrency.Limits(1, 4, 1, 10, 0.5), null, new SimpleMeterRegistry());
+
+	@Test
+	void startsAtTheMinimums() {
+		assertThat(concurrency.workers()).isEqualTo(1);
+		assertThat(concurrency.batchSize()).isEqualTo(1);
+	}
+
+	@Test
+	void growsOneStepPerAdjustWhileBatchesComeBackFullUpToTheMaximums() {
+		for (int i = 0; i < 20; i++) {
+			concurrency.record(concurrency.batchSize(), concurrency.batchSize(), 0, MS.multipliedBy(concurrency.batchSize()));
+			concurrency.adjust();
+			assertThat(concurrency.workers()).isEqualTo(Math.min(4, i + 2));
+		}
+
+		assertThat(concurrency.workers()).isEqualTo(4);
+		assertThat(concurrency.batchSize()).isEqualTo(10);
+	}
+
+	@Test
+	void halvesWhenTheErrorRateIsTooHigh() {
+		growTo(4, 5);
+
+		concurrency.record(5, 5, 4, MS.multipliedBy(5));
+		concurrency.adjust();
+
+		assertThat(concurrency.workers()).isEqualTo(2);
+		assertThat(concurrency.batchSize()).isEqualTo(2);
+	}
+
+	@Test
+	void halvesWhenTheLatencyDegrades() {
+		growTo(4, 5);
+
+		concurrency.record(5, 5, 0, MS.multipliedBy(5 * 100));
+		concurrency.adjust();
+
+		assertThat(concurrency.workers()).isEqualTo(2);
+		assertThat(concurrency.batchSize()).isEqualTo(2);
+	}
+
+	@Test
+	void shrinksOneStepWhenBatchesComeBackMostlyEmpty() {
+		growTo(4, 5);
+
+		concurrency.record(1, 5, 0, MS);
+		concurrency.adjust();
+
+		assertThat(concurrency.workers()).isEqualTo(3);
+		assertThat(concurrency.batchSize()).isEqualTo(4);
+	}
+
+	@Test
+	void learnsNothingWhenNobodyPolled() {
+		growTo(4, 5);
+
+		concurrency.adjust();
+
+		assertThat(concurrency.workers()).isEqualTo(4);
+		assertThat(concurrency.batchSize()).isEqualTo(5);
+	}
+
+	@Test
+	void countsFailuresOfMessagesProcessedAsynchronously() {
+		growTo(4, 5);
+
+		concurrency.record(5, 5, 0, Duration.ZERO);
+		for (int i = 0; i < 5; i++) {
+			concurrency.recordMessage(i < 3, MS);
+		}
+		concurrency.adjust();
+
+		assertThat(concurrency.workers()).isEqualTo(2);
+	}
+
+	@Test
+	void rejectsInconsistentLimits() {
+		assertThatThrownBy(() -> new AdaptiveConcurrency.Limits(0, 4, 1, 10, 0.5)).isInstanceOf(IllegalArgumentException.class);
+		assertThatThrownBy(() -> new AdaptiveConcurrency.Limits(3, 2, 1, 10, 0.5)).isInstanceOf(IllegalArgumentException.class);
+		assertThatThrownBy(() -> new AdaptiveConcurrency.Limits(1, 4, 5, 4, 0.5)).isInstanceOf(IllegalArgumentException.class);
+	}
+
+	//Full batches at a steady 1ms per message
+	private void growTo(int workers, int batchSize) {
+		while (concurrency.workers() < workers || concurrency.batchSize() < batchSize) {
+			concurrency.record(concurrency.batchSize(), concurrency.batchSize(), 0, MS.multipliedBy(concurrency.batchSize()));
+			concurrency.adjust();
+		}
+		assertThat(concurrency.workers()).isEqualTo(workers);
+		assertThat(concurrency.batchSize()).isEqualTo(batchSize);
+	}
+}
@@ -0,0 +1,127 @@
+package jon.db.queue.shared.queue;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class GroupCommitBufferTest {
+
+	@Test
+	void coalescesSubmitsInsideTheWindowAndAnswersEachInOrder() throws Exception {
+		List<List<Integer>> flushed = new CopyOnWriteArrayList<>();
+		try (var buffer = new GroupCommitBuffer<Integer, Integer>("test", Duration.ofMillis(200), 100, batch -> {
+			flushed.add(batch);
+			return batch.stream().map(i -> i * 10).toList();
+		})) {
+			var results = IntStream.range(0, 5).mapToObj(buffer::submit).toList();
+
+			for (int i = 0; i < results.size(); i++) {
+				assertThat(results.get(i).get(5, TimeUnit.SECONDS)).isEqualTo(i * 10);
+			}
+			assertThat(flushed).containsExactly(List.of(0, 1, 2, 3, 4));
+		}
+	}
+
+	@Test
+	void flushesAsSoonAsTheBatchIsFull() throws Exception {
+		List<Integer> sizes = new CopyOnWriteArrayList<>();
+		try (var buffer = new GroupCommitBuffer<Integer, Integer>("test", Duration.ofSeconds(30), 2, batch -> {
+			sizes.add(batch.size());
+			return batch;
+		})) {
+			var results = IntStream.range(0, 4).mapToObj(buffer::submit).toList();
+
+			CompletableFuture.allOf(results.toArray(CompletableFuture[]::new)).get(5, TimeUnit.SECONDS);
+			assertThat(sizes).containsExactly(2, 2);
+		}
+	}
+
+	@Test
+	void aFailedFlushFailsEveryMessageOfTheBatch() {
+		try (var buffer = new GroupCommitBuffer<Integer, Integer>("test", Duration.ofMillis(50), 100, batch -> {
+			throw new IllegalStateException("boom");
+		})) {
+			var first = buffer.submit(1);
+			var second = buffer.submit(2);
+
+			assertThatThrownBy(() -> first.get(5, TimeUnit.SECONDS)).isInstanceOf(ExecutionException.class).hasRootCauseMessage("boom");
+			assertThatThrownBy(() -> second.get(5, TimeUnit.SECONDS)).isInstanceOf(ExecutionException.class).hasRootCauseMessage("boom");
+		}
+	}
+
+	@Test
+	void rejectsSubmitsAfterClose() {
+		var buffer = new GroupCommitBuffer<Integer, Integer>("test", Duration.ofMillis(10), 100, batch -> batch);
+		buffer.close();
+
+		assertThat(buffer.submit(1)).isCompletedExceptionally();
+	}
+
+	@Test
+	void closeFlushesWhatIsStillBuffered() throws Exception {
+		List<List<Integer>> flushed = new CopyOnWriteArrayList<>();
+		var buffer = new GroupCommitBuffer<Integer, Integer>("test", Duration.ofSeconds(30), 2, batch -> {
+			flushed.add(batch);
+			return batch;
+		});
+		var results = IntStream.range(0, 5).mapToObj(buffer::submit).toList();
+
+		buffer.close();
+
+		for (int i = 0; i < results.size(); i++) {
+			assertThat(results.get(i)).isCompletedWithValue(i);
+		}
+		assertThat(flushed.stream().mapToInt(List::size).sum()).isEqualTo(5);
+		assertThat(flushed).allMatch(batch -> batch.size() <= 2);
+	}
+
+	@Test
+	void everySubmitAcceptedWhileRacingCloseIsFlushed() throws Exception {
+		for (int round = 0; round < 50; round++) {
+			var buffer = new GroupCommitBuffer<Integer, Integer>("test", Duration.ofMillis(1), 10, batch -> batch);
+			var start = new CountDownLatch(1);
+			List<CompletableFuture<Integer>> accepted = new CopyOnWriteArrayList<>();
+			List<Thread> submitters = new ArrayList<>();
+			for (int t = 0; t < 4; t++) {
+				submitters.add(Thread.ofVirtual().start(() -> {
+					await(start);
+					for (int i = 0; i < 100; i++) {
+						var result = buffer.submit(i);
+						//Rejected ones come back already failed, the rest must be written
+						if (!result.isCompletedExceptionally()) {
+							accepted.add(result);
+						}
+					}
+				}));
+			}
+
+			start.countDown();
+			buffer.close();
+			for (var submitter : submitters) {
+				submitter.join();
+			}
+
+			CompletableFuture.allOf(accepted.toArray(CompletableFuture[]::new)).get(5, TimeUnit.SECONDS);
+			assertThat(accepted).allMatch(result -> result.isDone() && !result.isCompletedExceptionally());
+		}
+	}
+
+	private static void await(CountDownLatch latch) {
+		try {
+			latch.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
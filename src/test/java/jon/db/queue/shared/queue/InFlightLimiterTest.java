@@ -0,0 +1,97 @@
+package jon.db.queue.shared.queue;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class InFlightLimiterTest {
+
+	@Test
+	void takesAsManyPermitsAsAreFreeUpToTheWantedOnes() throws Exception {
+		var limiter = new InFlightLimiter(5, 1);
+
+		assertThat(limiter.acquireUpTo(3)).isEqualTo(3);
+		assertThat(limiter.acquireUpTo(3)).isEqualTo(2);
+		assertThat(limiter.inFlight()).isEqualTo(5);
+	}
+
+	@Test
+	void blocksUntilAtLeastOnePermitIsReleased() throws Exception {
+		var limiter = new InFlightLimiter(2, 1);
+		limiter.acquireUpTo(2);
+
+		var acquired = CompletableFuture.supplyAsync(() -> {
+			try {
+				return limiter.acquireUpTo(2);
+			} catch (InterruptedException e) {
+				throw new IllegalStateException(e);
+			}
+		});
+
+		Thread.sleep(100);
+		assertThat(acquired).isNotDone();
+
+		limiter.release(1);
+		assertThat(acquired.get(5, TimeUnit.SECONDS)).isEqualTo(1);
+	}
+
+	@Test
+	void releasingNothingIsANoOp() throws Exception {
+		var limiter = new InFlightLimiter(2, 1);
+		limiter.acquireUpTo(2);
+
+		limiter.release(0);
+
+		assertThat(limiter.inFlight()).isEqualTo(2);
+	}
+
+	@Test
+	void boundsTheWorkUsingAConnection() throws Exception {
+		var limiter = new InFlightLimiter(100, 2);
+		var current = new AtomicInteger();
+		var max = new AtomicInteger();
+		var done = new CountDownLatch(20);
+
+		for (int i = 0; i < 20; i++) {
+			Thread.ofVirtual().start(() -> {
+				limiter.withConnection(() -> {
+					max.accumulateAndGet(current.incrementAndGet(), Math::max);
+					sleep(Duration.ofMillis(5));
+					current.decrementAndGet();
+				});
+				done.countDown();
+			});
+		}
+
+		assertThat(done.await(5, TimeUnit.SECONDS)).isTrue();
+		assertThat(max.get()).isEqualTo(2);
+	}
+
+	@Test
+	void releasesTheConnectionWhenTheWorkFails() {
+		var limiter = new InFlightLimiter(1, 1);
+
+		try {
+			limiter.withConnection(() -> {
+				throw new IllegalStateException("boom");
+			});
+		} catch (IllegalStateException ignored) {
+		}
+
+		assertThat(limiter.withConnection(() -> "still usable")).isEqualTo("still usable");
+	}
+
+	private static void sleep(Duration duration) {
+		try {
+			Thread.sleep(duration);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
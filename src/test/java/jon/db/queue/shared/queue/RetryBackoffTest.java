@@ -0,0 +1,52 @@
+package jon.db.queue.shared.queue;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class RetryBackoffTest {
+
+	@Test
+	void givesTheBoundsInSecondsForTheNackUpdate() {
+		var backoff = new RetryBackoff(Duration.ofMillis(250), Duration.ofMinutes(1), 0.5);
+
+		assertThat(backoff.initialSeconds()).isEqualTo(0.25);
+		assertThat(backoff.maxSeconds()).isEqualTo(60.0);
+	}
+
+	@Test
+	void noneRetriesRightAway() {
+		assertThat(RetryBackoff.NONE.initialSeconds()).isZero();
+		assertThat(RetryBackoff.NONE.maxSeconds()).isZero();
+		assertThat(RetryBackoff.NONE.jitter()).isZero();
+	}
+
+	@Test
+	void acceptsAFixedDelayAndTheWholeJitterRange() {
+		new RetryBackoff(Duration.ofSeconds(1), Duration.ofSeconds(1), 0);
+		new RetryBackoff(Duration.ofSeconds(1), Duration.ofSeconds(1), 1);
+	}
+
+	@Test
+	void rejectsANegativeInitialDelay() {
+		assertThatThrownBy(() -> new RetryBackoff(Duration.ofSeconds(-1), Duration.ofSeconds(1), 0.5))
+				.isInstanceOf(IllegalArgumentException.class);
+	}
+
+	@Test
+	void rejectsAMaxDelayBelowTheInitialOne() {
+		assertThatThrownBy(() -> new RetryBackoff(Duration.ofSeconds(10), Duration.ofSeconds(1), 0.5))
+				.isInstanceOf(IllegalArgumentException.class);
+	}
+
+	@Test
+	void rejectsAJitterOutsideZeroToOne() {
+		assertThatThrownBy(() -> new RetryBackoff(Duration.ofSeconds(1), Duration.ofSeconds(10), -0.1))
+				.isInstanceOf(IllegalArgumentException.class);
+		assertThatThrownBy(() -> new RetryBackoff(Duration.ofSeconds(1), Duration.ofSeconds(10), 1.1))
+				.isInstanceOf(IllegalArgumentException.class);
+	}
+}
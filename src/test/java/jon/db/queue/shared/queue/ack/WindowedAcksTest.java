@@ -0,0 +1,46 @@
+package jon.db.queue.shared.queue.ack;
+
+import jon.db.queue.shared.queue.RetryBackoff;
+import jon.db.queue.shared.queue.abstract_queue.QueueLease;
+import jon.db.queue.shared.queue.abstract_queue.QueueRepo;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class WindowedAcksTest {
+	private static final RetryBackoff BACKOFF = new RetryBackoff(Duration.ofSeconds(1), Duration.ofMinutes(1), 0.5);
+
+	@Test
+	@SuppressWarnings("unchecked")
+	void acksOfDifferentClaimsShareOneStatementPerKind() throws Exception {
+		QueueRepo<?, Long> repo = mock(QueueRepo.class);
+		//Message 2 was claimed again by claim-c, the ack of claim-b comes too late
+		when(repo.ackAllLeased(eq("queue"), anyList(), any())).thenReturn(List.of(new QueueLease<>(1L, "claim-a")));
+		when(repo.nackAllLeased(eq("queue"), anyList(), eq(BACKOFF))).thenReturn(List.of(new QueueLease<>(3L, "claim-c")));
+
+		try (var acks = new WindowedAcks<>(repo, "queue", BACKOFF, Duration.ofMillis(200), 100)) {
+			var first = CompletableFuture.supplyAsync(() -> acks.ack(1L, "claim-a"));
+			var lost = CompletableFuture.supplyAsync(() -> acks.ack(2L, "claim-b"));
+			var failed = CompletableFuture.supplyAsync(() -> acks.nack(3L, "claim-c"));
+
+			assertThat(first.get(5, TimeUnit.SECONDS)).isTrue();
+			assertThat(lost.get(5, TimeUnit.SECONDS)).isFalse();
+			assertThat(failed.get(5, TimeUnit.SECONDS)).isTrue();
+		}
+
+		verify(repo, times(1)).ackAllLeased(eq("queue"), anyList(), any());
+		verify(repo, times(1)).nackAllLeased(eq("queue"), anyList(), eq(BACKOFF));
+	}
+}
@@ -0,0 +1,53 @@
+package jon.db.queue.shared.queue.dead_letter_queue;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.time.LocalDateTime;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class DLQCursorTest {
+	private static final UUID MESSAGE_ID = UUID.fromString("7f1c2a8e-3b7d-4c55-9d0e-2f4a6b8c1d3e");
+
+	@Test
+	void roundTripsThroughItsToken() {
+		var cursor = new DLQCursor(LocalDateTime.of(2024, 3, 5, 10, 15, 30, 123_456_000), MESSAGE_ID);
+
+		assertThat(cursor.token()).isEqualTo("2024-03-05T10:15:30.123456_" + MESSAGE_ID);
+		assertThat(DLQCursor.parse(cursor.token())).isEqualTo(cursor);
+	}
+
+	@Test
+	void roundTripsWhenTheSecondsAreZero() {
+		//LocalDateTime.toString drops them
+		var cursor = new DLQCursor(LocalDateTime.of(2024, 3, 5, 10, 15), MESSAGE_ID);
+
+		assertThat(DLQCursor.parse(cursor.token())).isEqualTo(cursor);
+	}
+
+	@Test
+	void pointsAtTheLastMessageOfAPage() {
+		var arrivedAt = LocalDateTime.of(2024, 3, 5, 10, 15, 30);
+		var message = DeadLetterQueue.Factory.create(MESSAGE_ID, "{}", arrivedAt, "character_queue");
+
+		assertThat(DLQCursor.of(message)).isEqualTo(new DLQCursor(arrivedAt, MESSAGE_ID));
+	}
+
+	@ParameterizedTest
+	@ValueSource(strings = {
+			"",
+			"2024-03-05T10:15:30",
+			"2024-03-05T10:15:30_" + "7f1c2a8e-3b7d-4c55-9d0e-2f4a6b8c1d3e_extra",
+			"yesterday_7f1c2a8e-3b7d-4c55-9d0e-2f4a6b8c1d3e",
+			"2024-03-05T10:15:30_not-a-uuid"
+	})
+	void rejectsMalformedTokens(String token) {
+		assertThatThrownBy(() -> DLQCursor.parse(token))
+				.isInstanceOf(IllegalArgumentException.class)
+				.hasMessageStartingWith("Invalid DLQ cursor");
+	}
+}
@@ -0,0 +1,189 @@
+package jon.db.queue.shared.queue.engine;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.ToIntFunction;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class FairSchedulerTest {
+	private FairScheduler scheduler;
+
+	@AfterEach
+	void stop() {
+		scheduler.stop();
+		scheduler.awaitTermination(Duration.ofSeconds(5));
+	}
+
+	@Test
+	void servesQueuesInProportionToTheirWeight() throws Exception {
+		scheduler = new FairScheduler(1, new SimpleMeterRegistry());
+		List<String> served = new CopyOnWriteArrayList<>();
+		var budget = new AtomicInteger(30);
+		var drained = new CountDownLatch(2);
+		ToIntFunction<String> serve = table -> {
+			if (budget.getAndDecrement() > 0) {
+				served.add(table);
+				return 1;
+			}
+			drained.countDown();
+			return 0;
+		};
+
+		scheduler.register(runner("heavy", 10, serve), 2, 0);
+		scheduler.register(runner("light", 10, serve), 1, 0);
+		scheduler.start();
+
+		assertThat(drained.await(5, TimeUnit.SECONDS)).isTrue();
+		assertThat(served).hasSize(30);
+		assertThat(served.stream().filter("heavy"::equals).count()).isEqualTo(20);
+		assertThat(served.stream().filter("light"::equals).count()).isEqualTo(10);
+	}
+
+	@Test
+	void aQueueBelowItsMinimumGoesFirstWhateverItsWeight() throws Exception {
+		scheduler = new FairScheduler(2, new SimpleMeterRegistry());
+		var heavyBatches = new AtomicInteger();
+		var heavyBatchesWhenLightWasServed = new AtomicInteger(-1);
+		var light = new AtomicInteger();
+		var lightServed = new CountDownLatch(10);
+
+		//Weight 1000 vs 1: by fairness alone light would wait for ~1000 heavy batches between two of its own
+		scheduler.register(runner("heavy", 10, table -> {
+			heavyBatches.incrementAndGet();
+			sleep(Duration.ofMillis(1));
+			return 1;
+		}), 1000, 0);
+		scheduler.register(runner("light", 10, table -> {
+			if (light.incrementAndGet() == 10) {
+				heavyBatchesWhenLightWasServed.set(heavyBatches.get());
+			}
+			lightServed.countDown();
+			return 1;
+		}), 1, 1);
+		scheduler.start();
+
+		assertThat(lightServed.await(5, TimeUnit.SECONDS)).isTrue();
+		assertThat(heavyBatchesWhenLightWasServed.get()).isBetween(0, 999);
+	}
+
+	@Test
+	void neverGivesAQueueMoreWorkersThanItsAdaptiveLimit() throws Exception {
+		scheduler = new FairScheduler(4, new SimpleMeterRegistry());
+		var active = new AtomicInteger();
+		var maxActive = new AtomicInteger();
+		var batches = new AtomicInteger(20);
+		var drained = new CountDownLatch(1);
+
+		scheduler.register(runner("capped", 2, table -> {
+			maxActive.accumulateAndGet(active.incrementAndGet(), Math::max);
+			sleep(Duration.ofMillis(5));
+			active.decrementAndGet();
+			if (batches.decrementAndGet() > 0) {
+				return 1;
+			}
+			drained.countDown();
+			return 0;
+		}), 1, 0);
+		scheduler.start();
+
+		assertThat(drained.await(5, TimeUnit.SECONDS)).isTrue();
+		assertThat(maxActive.get()).isEqualTo(2);
+	}
+
+	@Test
+	void aWakeUpDuringAnEmptyBatchIsNotLost() throws Exception {
+		scheduler = new FairScheduler(1, new SimpleMeterRegistry());
+		var fetching = new CountDownLatch(1);
+		var wokenUp = new CountDownLatch(1);
+		var servedAfterWakeUp = new CountDownLatch(1);
+		var batches = new AtomicInteger();
+
+		var runner = runner("queue", 1, table -> {
+			if (batches.incrementAndGet() == 1) {
+				//Empty, but the notification of a new message comes while it runs
+				fetching.countDown();
+				await(wokenUp);
+				return 0;
+			}
+			servedAfterWakeUp.countDown();
+			return 0;
+		});
+		scheduler.register(runner, 1, 0);
+		scheduler.start();
+
+		assertThat(fetching.await(5, TimeUnit.SECONDS)).isTrue();
+		scheduler.ready(runner);
+		wokenUp.countDown();
+
+		//No poll here: without the pending wake-up the queue would stay parked
+		assertThat(servedAfterWakeUp.await(5, TimeUnit.SECONDS)).isTrue();
+	}
+
+	@Test
+	void anEmptyBatchDoesntParkTheQueueWhileAnotherFindsWork() throws Exception {
+		scheduler = new FairScheduler(2, new SimpleMeterRegistry());
+		var bothFetching = new CountDownLatch(2);
+		var emptyReleased = new CountDownLatch(1);
+		var batches = new AtomicInteger();
+		var servedAfter = new CountDownLatch(1);
+
+		scheduler.register(runner("queue", 2, table -> {
+			var batch = batches.incrementAndGet();
+			if (batch == 1) {
+				bothFetching.countDown();
+				await(bothFetching);
+				emptyReleased.countDown();
+				return 0;
+			}
+			if (batch == 2) {
+				//Still running when the other one comes back empty, and it found a full batch
+				bothFetching.countDown();
+				await(emptyReleased);
+				sleep(Duration.ofMillis(50));
+				return 1;
+			}
+			servedAfter.countDown();
+			return 0;
+		}), 1, 0);
+		scheduler.start();
+
+		assertThat(servedAfter.await(5, TimeUnit.SECONDS)).isTrue();
+	}
+
+	@SuppressWarnings("unchecked")
+	private static QueueRunner<?, ?, ?> runner(String table, int maxActiveWorkers, ToIntFunction<String> batch) {
+		QueueRunner<?, ?, ?> runner = mock(QueueRunner.class);
+		when(runner.tableName()).thenReturn(table);
+		when(runner.maxActiveWorkers()).thenReturn(maxActiveWorkers);
+		when(runner.processNextBatch(anyString())).thenAnswer(invocation -> batch.applyAsInt(table));
+		return runner;
+	}
+
+	private static void await(CountDownLatch latch) {
+		try {
+			latch.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static void sleep(Duration duration) {
+		try {
+			Thread.sleep(duration);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}